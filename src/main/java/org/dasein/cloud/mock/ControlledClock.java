@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock;
+
+import javax.annotation.Nonnegative;
+
+/**
+ * A clock that moves only when told to. Advancing the clock immediately runs any VM state transitions
+ * that have come due, so tests can compress hours of simulated time into a single call. Sleeping on
+ * a controlled clock blocks until the test advances the clock past the end of the sleep, so background
+ * operations such as image capture never move the clock on their own. A synchronous call that sleeps,
+ * such as a blocking image capture, returns only once another thread has advanced the clock far enough.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public class ControlledClock extends MockClock {
+    private long now;
+
+    /**
+     * Constructs a controlled clock starting at the current system time.
+     */
+    public ControlledClock() {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * Constructs a controlled clock starting at the specified time.
+     * @param startTime the initial time in milliseconds since the epoch
+     */
+    public ControlledClock(long startTime) {
+        now = startTime;
+    }
+
+    /**
+     * Moves this clock forward by the specified amount of time.
+     * @param millis the number of milliseconds to advance the clock
+     */
+    public void advance(@Nonnegative long millis) {
+        if( millis < 0L ) {
+            throw new IllegalArgumentException("Time cannot move backwards: " + millis);
+        }
+        synchronized( this ) {
+            now += millis;
+            notifyAll();
+        }
+        fireAdvanced(this);
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public synchronized void sleep(@Nonnegative long millis) throws InterruptedException {
+        long wakeTime = now + millis;
+
+        while( now < wakeTime ) {
+            wait();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The source of time shared by all mock cloud services. By default, the mock cloud runs on the system clock.
+ * Tests that want simulated time to pass faster than wall time may install a {@link ControlledClock} via
+ * {@link #setInstance(MockClock)} and advance it explicitly.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public abstract class MockClock {
+    /**
+     * Notified whenever the active clock jumps forward so that anything waiting on simulated time can catch up.
+     */
+    static public interface Listener {
+        public void clockAdvanced(@Nonnull MockClock clock, long now);
+    }
+
+    static private final MockClock system = new MockClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void sleep(@Nonnegative long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    static private volatile MockClock                        clock     = system;
+    static private final CopyOnWriteArrayList<Listener>      listeners = new CopyOnWriteArrayList<Listener>();
+
+    static public void addListener(@Nonnull Listener listener) {
+        listeners.add(listener);
+    }
+
+    static public @Nonnull MockClock getInstance() {
+        return clock;
+    }
+
+    static public @Nonnull MockClock getSystemClock() {
+        return system;
+    }
+
+    static public void removeListener(@Nonnull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Installs the clock used by all mock cloud services.
+     * @param newClock the clock to use or <code>null</code> to go back to the system clock
+     */
+    static public void setInstance(@Nullable MockClock newClock) {
+        clock = (newClock == null ? system : newClock);
+        fireAdvanced(clock);
+    }
+
+    static protected void fireAdvanced(@Nonnull MockClock source) {
+        if( source != clock ) {
+            return;
+        }
+        long now = source.currentTimeMillis();
+
+        for( Listener listener : listeners ) {
+            listener.clockAdvanced(source, now);
+        }
+    }
+
+    /**
+     * @return the current time in milliseconds according to this clock
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * Waits for the specified amount of time to elapse on this clock.
+     * @param millis the number of milliseconds to wait
+     * @throws InterruptedException the wait was interrupted
+     */
+    public abstract void sleep(@Nonnegative long millis) throws InterruptedException;
+}
@@ -38,6 +38,7 @@ import org.dasein.cloud.compute.MachineImageType;
 import org.dasein.cloud.compute.Platform;
 import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.mock.MockClock;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -290,18 +291,18 @@ public class MockImageSupport implements MachineImageSupport {
         image.setImageClass(ImageClass.MACHINE);
         image.setType(MachineImageType.VOLUME);
 
-        try { Thread.sleep(15000L + (random.nextInt(45) * 1000L)); }
+        try { MockClock.getInstance().sleep(15000L + (random.nextInt(45) * 1000L)); }
         catch( InterruptedException ignore ) { }
         if( optionalTask != null ) {
             optionalTask.setPercentComplete(50);
         }
-        try { Thread.sleep(15000L + (random.nextInt(45) * 1000L)); }
+        try { MockClock.getInstance().sleep(15000L + (random.nextInt(45) * 1000L)); }
         catch( InterruptedException ignore ) { }
         addCustomImage(endpoint, regionId, image);
         if( optionalTask != null ) {
             optionalTask.completeWithResult(image);
         }
-        try { Thread.sleep(15000L + (random.nextInt(45) * 1000L)); }
+        try { MockClock.getInstance().sleep(15000L + (random.nextInt(45) * 1000L)); }
         catch( InterruptedException ignore ) { }
         image.setCurrentState(MachineImageState.ACTIVE);
         return image;
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import org.dasein.cloud.ResourceStatus;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VmState;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The mock cloud's internal record of a single virtual machine. The VM's state is changed only through
+ * atomic compare-and-set operations against a {@link StateStamp} so that concurrent callers never need a
+ * shared lock to move a VM between states.
+ * @version 2013.02
+ * @since 2013.02
+ */
+class MockVM {
+    /**
+     * An immutable snapshot of a VM's state. Every state change produces a new stamp, so a stale stamp
+     * never matches even if the VM has since cycled back into the same state.
+     */
+    static final class StateStamp {
+        public final VmState state;
+        public final long    version;
+
+        private volatile ResourceStatus status;
+
+        StateStamp(@Nonnull VmState state, long version) {
+            this.state = state;
+            this.version = version;
+        }
+    }
+
+    public String   vmId;
+    public String   endpoint;
+    public String   regionId;
+    public String   dataCenterId;
+    public String   name;
+    public String   description;
+    public long     created;
+    public String   imageId;
+    public long     lastBoot;
+    public long     lastPaused;
+    public volatile long lastTouched;
+    public Platform platform;
+    public String   owner;
+    public String   privateIpAddress;
+    public String   publicIpAddress;
+    public String   productId;
+    public String   vlanId;
+    public String   subnetId;
+    public String   rootUser;
+    public String   rootPassword;
+    public String   shellKey;
+
+    private final AtomicReference<StateStamp> state = new AtomicReference<StateStamp>(new StateStamp(VmState.PENDING, 0L));
+
+    /**
+     * Creates a new pending VM with the same configuration as this one. Identity, addresses, and timestamps
+     * are left for the caller to fill in.
+     * @return a copy of this VM's configuration
+     */
+    @Nonnull MockVM copy() {
+        MockVM vm = new MockVM();
+
+        vm.endpoint = endpoint;
+        vm.regionId = regionId;
+        vm.dataCenterId = dataCenterId;
+        vm.name = name;
+        vm.description = description;
+        vm.imageId = imageId;
+        vm.lastBoot = lastBoot;
+        vm.lastPaused = lastPaused;
+        vm.platform = platform;
+        vm.owner = owner;
+        vm.productId = productId;
+        vm.vlanId = vlanId;
+        vm.subnetId = subnetId;
+        vm.rootUser = rootUser;
+        vm.rootPassword = rootPassword;
+        vm.shellKey = shellKey;
+        return vm;
+    }
+
+    /**
+     * Atomically moves this VM into a new state provided it is still in the expected state.
+     * @param expected the stamp the caller last observed
+     * @param next the state into which the VM should move
+     * @return the new stamp or <code>null</code> if the VM changed state since the expected stamp was read
+     */
+    @Nullable StateStamp compareAndSet(@Nonnull StateStamp expected, @Nonnull VmState next) {
+        StateStamp updated = new StateStamp(next, expected.version + 1L);
+
+        return (state.compareAndSet(expected, updated) ? updated : null);
+    }
+
+    public @Nonnull VmState getCurrentState() {
+        return state.get().state;
+    }
+
+    /**
+     * Provides the status of this VM as of the specified state stamp. The status is built once per stamp
+     * and shared by every caller that asks for it.
+     * @param stamp a state stamp from this VM
+     * @return the VM's status as of that stamp
+     */
+    public @Nonnull ResourceStatus getResourceStatus(@Nonnull StateStamp stamp) {
+        ResourceStatus status = stamp.status;
+
+        if( status == null ) {
+            status = new ResourceStatus(vmId, stamp.state);
+            stamp.status = status;
+        }
+        return status;
+    }
+
+    public @Nonnull StateStamp getStateStamp() {
+        return state.get();
+    }
+}
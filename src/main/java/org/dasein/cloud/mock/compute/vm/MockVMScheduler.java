@@ -0,0 +1,346 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.mock.MockClock;
+import org.dasein.cloud.mock.network.firewall.MockFirewallSupport;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives mock virtual machines through their transitional states. Each time a VM enters a transitional
+ * state, a single transition to its next state is queued with a deadline sampled from that state's
+ * {@link TransitionLatency}. Every VM has at most one pending transition: a state change replaces or
+ * removes whatever was pending for the VM, so the queue never holds more entries than there are live VMs.
+ * A daemon thread sleeps until the earliest deadline and touches only the VMs that are due. Each transition
+ * is applied with a compare-and-set against the exact state stamp it was queued for. Terminated VMs are
+ * queued once more for removal from the store when their retention period ends, so expiry costs nothing on
+ * the read path. Deadlines are measured against the {@link MockClock}; when a controlled clock is advanced,
+ * every transition that comes due is applied before the advance returns, including any the worker thread
+ * picked up concurrently.
+ * @version 2013.02
+ * @since 2013.02
+ */
+class MockVMScheduler {
+    /**
+     * How long terminated VMs remain visible before they are purged from the mock cloud.
+     */
+    static final long TERMINATED_RETENTION = CalendarWrapper.MINUTE * 10L;
+
+    static private class Transition implements Comparable<Transition> {
+        private final MockVM            vm;
+        private final MockVM.StateStamp stamp;
+        private final VmState           target; // null means the VM is to be purged
+        private final long              due;
+        private final long              sequence;
+
+        private Transition(@Nonnull MockVM vm, @Nonnull MockVM.StateStamp stamp, @Nullable VmState target, long due, long sequence) {
+            this.vm = vm;
+            this.stamp = stamp;
+            this.target = target;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@Nonnull Transition t) {
+            if( due != t.due ) {
+                return (due < t.due ? -1 : 1);
+            }
+            return (sequence < t.sequence ? -1 : (sequence == t.sequence ? 0 : 1));
+        }
+    }
+
+    static private final EnumMap<VmState,VmState> nextStates = new EnumMap<VmState, VmState>(VmState.class);
+
+    static {
+        nextStates.put(VmState.PENDING, VmState.RUNNING);
+        nextStates.put(VmState.PAUSING, VmState.PAUSED);
+        nextStates.put(VmState.SUSPENDING, VmState.SUSPENDED);
+        nextStates.put(VmState.STOPPING, VmState.STOPPED);
+        nextStates.put(VmState.REBOOTING, VmState.PENDING);
+        // running VMs occasionally crash
+        nextStates.put(VmState.RUNNING, VmState.TERMINATED);
+    }
+
+    private final EnumMap<VmState,TransitionLatency> latencies = new EnumMap<VmState, TransitionLatency>(VmState.class);
+    // the queue also guards the pending map and is what the worker waits on
+    private final TreeSet<Transition>                queue     = new TreeSet<Transition>();
+    private final HashMap<MockVM,Transition>         pending   = new HashMap<MockVM, Transition>();
+    private int                                      applying  = 0;   // drained but not yet applied
+    private final Random                             random    = new Random();
+    private final AtomicLong                         sequence  = new AtomicLong();
+    private final MockVMStore                        store;
+    private Thread                                   worker;
+
+    MockVMScheduler(@Nonnull MockVMStore store) {
+        this.store = store;
+        for( VmState state : nextStates.keySet() ) {
+            latencies.put(state, TransitionLatency.exponential(CalendarWrapper.SECOND * 150L));
+        }
+        latencies.put(VmState.RUNNING, TransitionLatency.exponential(CalendarWrapper.DAY));
+        MockClock.addListener(new MockClock.Listener() {
+            @Override
+            public void clockAdvanced(@Nonnull MockClock clock, long now) {
+                runDue();
+            }
+        });
+    }
+
+    /**
+     * Queues the transition out of the VM's current state, if that state is transitional. Called once for
+     * each newly created VM; subsequent transitions are queued automatically.
+     * @param vm the VM to schedule
+     */
+    public void schedule(@Nonnull MockVM vm) {
+        schedule(vm, vm.getStateStamp());
+    }
+
+    private void schedule(@Nonnull MockVM vm, @Nonnull MockVM.StateStamp stamp) {
+        Transition next = null;
+
+        if( stamp.state.equals(VmState.TERMINATED) ) {
+            next = new Transition(vm, stamp, null, vm.lastTouched + TERMINATED_RETENTION, sequence.incrementAndGet());
+        }
+        else {
+            VmState target = nextStates.get(stamp.state);
+
+            if( target != null ) {
+                long delay;
+
+                synchronized( latencies ) {
+                    delay = latencies.get(stamp.state).sample(random);
+                }
+                if( delay >= 0L ) {
+                    next = new Transition(vm, stamp, target, MockClock.getInstance().currentTimeMillis() + delay, sequence.incrementAndGet());
+                }
+            }
+        }
+        synchronized( queue ) {
+            if( vm.getStateStamp() != stamp ) {
+                return;     // a later state change has already replaced this one's transition
+            }
+            Transition old = (next == null ? pending.remove(vm) : pending.put(vm, next));
+
+            if( old != null ) {
+                queue.remove(old);
+            }
+            if( next == null ) {
+                return;
+            }
+            queue.add(next);
+            if( queue.first() == next ) {
+                queue.notifyAll();
+            }
+        }
+        checkWorker();
+    }
+
+    /**
+     * Atomically moves the specified VM from one state into another and queues its transition out of the
+     * new state if that state is transitional.
+     * @param vm the VM changing state
+     * @param from the state the VM must currently be in
+     * @param to the state into which the VM is moving
+     * @return true if the VM was in the expected state and has been moved
+     */
+    public boolean transition(@Nonnull MockVM vm, @Nonnull VmState from, @Nonnull VmState to) {
+        while( true ) {
+            MockVM.StateStamp current = vm.getStateStamp();
+
+            if( !current.state.equals(from) ) {
+                return false;
+            }
+            if( transition(vm, current, to) ) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Atomically moves the specified VM from the exact state stamp observed by the caller into a new state.
+     * @param vm the VM changing state
+     * @param from the stamp the caller last observed
+     * @param to the state into which the VM is moving
+     * @return true if the VM had not changed state since the stamp was read and has been moved
+     */
+    public boolean transition(@Nonnull MockVM vm, @Nonnull MockVM.StateStamp from, @Nonnull VmState to) {
+        MockVM.StateStamp updated = store.transition(vm, from, to);
+
+        if( updated == null ) {
+            return false;
+        }
+        schedule(vm, updated);
+        return true;
+    }
+
+    public void setLatency(@Nonnull VmState state, @Nonnull TransitionLatency latency) {
+        if( !nextStates.containsKey(state) ) {
+            throw new IllegalArgumentException(state + " is not a transitional state");
+        }
+        synchronized( latencies ) {
+            latencies.put(state, latency);
+        }
+    }
+
+    private void apply(@Nonnull Transition transition) {
+        MockVM vm = transition.vm;
+
+        if( store.get(vm.vmId) != vm || vm.getStateStamp() != transition.stamp ) {
+            return;
+        }
+        if( transition.target == null ) {
+            store.remove(vm);
+        }
+        else if( transition.target.equals(VmState.TERMINATED) ) {
+            vm.lastTouched = MockClock.getInstance().currentTimeMillis();
+            if( transition(vm, transition.stamp, VmState.TERMINATED) ) {
+                MockFirewallSupport.vmTerminated(vm.vmId);
+            }
+        }
+        else {
+            transition(vm, transition.stamp, transition.target);
+        }
+    }
+
+    /**
+     * Moves every transition that is due out of the queue. The caller must pass the transitions to
+     * {@link #applyAll(List)} so that {@link #runDue()} knows when they have been applied.
+     * @param due the list into which due transitions are moved
+     * @return true if any transition was due
+     */
+    private boolean drainDue(@Nonnull List<Transition> due) {
+        long now = MockClock.getInstance().currentTimeMillis();
+
+        synchronized( queue ) {
+            while( !queue.isEmpty() && queue.first().due <= now ) {
+                Transition transition = queue.pollFirst();
+
+                pending.remove(transition.vm);
+                due.add(transition);
+            }
+            applying += due.size();
+        }
+        return !due.isEmpty();
+    }
+
+    private void applyAll(@Nonnull List<Transition> due) {
+        try {
+            for( Transition transition : due ) {
+                apply(transition);
+            }
+        }
+        finally {
+            synchronized( queue ) {
+                applying -= due.size();
+                if( applying == 0 ) {
+                    queue.notifyAll();
+                }
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * Applies every transition that is due, returning only once nothing is due and no transition taken by
+     * the worker thread is still being applied.
+     */
+    private void runDue() {
+        ArrayList<Transition> due = new ArrayList<Transition>();
+
+        while( true ) {
+            // applying a transition may queue follow-on transitions that are already due
+            while( drainDue(due) ) {
+                applyAll(due);
+            }
+            synchronized( queue ) {
+                try {
+                    while( applying > 0 ) {
+                        queue.wait();
+                    }
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if( queue.isEmpty() || queue.first().due > MockClock.getInstance().currentTimeMillis() ) {
+                    // the worker measured its current wait against the old time
+                    queue.notifyAll();
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void checkWorker() {
+        if( worker == null ) {
+            worker = new Thread() {
+                public void run() {
+                    work();
+                }
+            };
+            worker.setDaemon(true);
+            worker.setName("VM State Scheduler");
+            worker.start();
+        }
+    }
+
+    private void work() {
+        ArrayList<Transition> due = new ArrayList<Transition>();
+
+        //noinspection InfiniteLoopStatement
+        while( true ) {
+            if( !drainDue(due) ) {
+                awaitDue();
+                continue;
+            }
+            applyAll(due);
+        }
+    }
+
+    private void awaitDue() {
+        synchronized( queue ) {
+            try {
+                if( queue.isEmpty() ) {
+                    queue.wait();
+                }
+                else {
+                    long delay = queue.first().due - MockClock.getInstance().currentTimeMillis();
+
+                    if( delay > 0L ) {
+                        queue.wait(delay);
+                    }
+                }
+            }
+            catch( InterruptedException ignore ) {
+                // re-check the queue
+            }
+        }
+    }
+}
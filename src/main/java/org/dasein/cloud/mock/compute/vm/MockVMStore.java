@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import org.dasein.cloud.compute.VmState;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexed storage for mock virtual machines. VMs are held in a primary index by VM ID with a secondary
+ * index by cloud region and owner so that point lookups are constant time and account listings only touch
+ * the VMs in scope. Both indexes are concurrent structures, so operations on different accounts or VMs
+ * never contend on a shared lock. Listings are weakly consistent live views; callers that care about state
+ * should re-check it.
+ * @version 2013.02
+ * @since 2013.02
+ */
+class MockVMStore {
+    static private @Nonnull String toOwnerKey(@Nonnull String endpoint, @Nonnull String regionId, @Nonnull String owner) {
+        return (endpoint + "|" + regionId + "|" + owner);
+    }
+
+    private final ConcurrentHashMap<String,MockVM>      vms     = new ConcurrentHashMap<String, MockVM>();
+    private final ConcurrentHashMap<String,Set<MockVM>> byOwner = new ConcurrentHashMap<String, Set<MockVM>>();
+
+    private @Nonnull Set<MockVM> getOwnerSet(@Nonnull String key) {
+        Set<MockVM> list = byOwner.get(key);
+
+        if( list == null ) {
+            Set<MockVM> existing = byOwner.putIfAbsent(key, list = Collections.newSetFromMap(new ConcurrentHashMap<MockVM, Boolean>()));
+
+            if( existing != null ) {
+                list = existing;
+            }
+        }
+        return list;
+    }
+
+    public void add(@Nonnull MockVM vm) {
+        getOwnerSet(toOwnerKey(vm.endpoint, vm.regionId, vm.owner)).add(vm);
+        vms.put(vm.vmId, vm);
+    }
+
+    /**
+     * Adds a batch of VMs, resolving each owner's index set once rather than once per VM. The batch is not
+     * added atomically, so a concurrent listing may see part of it.
+     * @param list the VMs to add
+     */
+    public void addAll(@Nonnull Collection<MockVM> list) {
+        HashMap<String,List<MockVM>> owners = new HashMap<String, List<MockVM>>();
+
+        for( MockVM vm : list ) {
+            String key = toOwnerKey(vm.endpoint, vm.regionId, vm.owner);
+            List<MockVM> group = owners.get(key);
+
+            if( group == null ) {
+                group = new ArrayList<MockVM>();
+                owners.put(key, group);
+            }
+            group.add(vm);
+        }
+        for( Map.Entry<String,List<MockVM>> entry : owners.entrySet() ) {
+            getOwnerSet(entry.getKey()).addAll(entry.getValue());
+        }
+        for( MockVM vm : list ) {
+            vms.put(vm.vmId, vm);
+        }
+    }
+
+    public @Nullable MockVM get(@Nonnull String vmId) {
+        return vms.get(vmId);
+    }
+
+    public @Nullable MockVM get(@Nonnull String endpoint, @Nonnull String regionId, @Nonnull String vmId) {
+        MockVM vm = vms.get(vmId);
+
+        if( vm == null || !endpoint.equals(vm.endpoint) || !regionId.equals(vm.regionId) ) {
+            return null;
+        }
+        return vm;
+    }
+
+    public @Nonnull Collection<MockVM> listByOwner(@Nonnull String endpoint, @Nonnull String regionId, @Nonnull String owner) {
+        Set<MockVM> list = byOwner.get(toOwnerKey(endpoint, regionId, owner));
+
+        if( list == null ) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableSet(list);
+    }
+
+    public void remove(@Nonnull MockVM vm) {
+        if( !vms.remove(vm.vmId, vm) ) {
+            return;
+        }
+        // empty sets are left behind since removing them would race with concurrent inserts
+        Set<MockVM> list = byOwner.get(toOwnerKey(vm.endpoint, vm.regionId, vm.owner));
+
+        if( list != null ) {
+            list.remove(vm);
+        }
+    }
+
+    /**
+     * Atomically moves a VM from the exact state stamp the caller observed into a new state.
+     * @param vm the VM to transition
+     * @param expected the stamp the caller last observed
+     * @param next the new state
+     * @return the VM's new stamp or <code>null</code> if the VM changed state concurrently
+     */
+    public @Nullable MockVM.StateStamp transition(@Nonnull MockVM vm, @Nonnull MockVM.StateStamp expected, @Nonnull VmState next) {
+        return vm.compareAndSet(expected, next);
+    }
+}
@@ -43,6 +43,7 @@ import org.dasein.cloud.compute.VmState;
 import org.dasein.cloud.compute.VmStatistics;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.identity.ServiceAction;
+import org.dasein.cloud.mock.MockClock;
 import org.dasein.cloud.mock.network.firewall.MockFirewallSupport;
 import org.dasein.cloud.mock.network.ip.MockIPSupport;
 import org.dasein.cloud.network.IPVersion;
@@ -51,7 +52,6 @@ import org.dasein.cloud.network.RawAddress;
 import org.dasein.cloud.network.Subnet;
 import org.dasein.cloud.network.VLAN;
 import org.dasein.cloud.network.VLANSupport;
-import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Storage;
 
@@ -61,10 +61,9 @@ import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implements mock virtual machine features.
@@ -74,171 +73,87 @@ import java.util.Random;
  * @since 2012.09
  */
 public class MockVMSupport implements VirtualMachineSupport {
-    static private class MockVM {
-        public String   vmId;
-        public String   name;
-        public String   description;
-        public VmState  currentState;
-        public long     created;
-        public String   imageId;
-        public long     lastBoot;
-        public long     lastPaused;
-        public long     lastTouched;
-        public Platform platform;
-        public String   owner;
-        public String   privateIpAddress;
-        public String   publicIpAddress;
-        public String   productId;
-        public String   vlanId;
-        public String   subnetId;
-        public String   rootUser;
-        public String   rootPassword;
-        public String   shellKey;
-    }
-
-    static private final HashMap<String,Map<String,Map<String,Collection<MockVM>>>> mockList = new HashMap<String, Map<String, Map<String, Collection<MockVM>>>>();
-    static private Thread monitor;
-    static private long   nextId = 1;
-    static private int    quad1  = 10;
-    static private int    quad2  = 0;
-    static private int    quad3  = 0;
-    static private int    quad4  = 0;
-
-    static public String[] getNextIpPair() throws CloudException {
-        synchronized( mockList ) {
-            quad4++;
-            if( quad4 > 253 ) {
-                quad4 = 1;
-                quad3++;
-                if( quad3 > 253 ) {
-                    quad3 = 0;
-                    if( quad1 == 10 ) {
-                        quad2++;
-                        if( quad2 > 253 ) {
-                            quad1 = 192;
-                            quad2 = 168;
-                        }
-                    }
-                    else if( quad1 == 192 ) {
-                        quad1 = 172;
-                        quad2 = 16;
-                    }
-                    else if( quad1 == 172 ) {
-                        quad2++;
-                        if( quad2 > 31 ) {
-                            throw new CloudException("Unable to allocate an IP address");
-                        }
-                    }
-                }
-            }
-            return new String[] { quad1 + "." + quad2 + "." + quad3 + "." + quad4, (15 + quad1) + "." + quad2 + "." + quad3 + "." + quad4 };
+    static private final MockVMStore     store     = new MockVMStore();
+    static private final MockVMScheduler scheduler = new MockVMScheduler(store);
+    static private final AtomicLong      nextId    = new AtomicLong(1L);
+    static private final AtomicLong      nextIp    = new AtomicLong(0L);
+
+    // bootstrap addresses run x.x.x.1 through x.x.x.253 in subnets x.x.0 through x.x.253
+    static private final long HOSTS_PER_SUBNET   = 253L;
+    static private final long HOSTS_PER_SLASH_16 = 254L * HOSTS_PER_SUBNET;
+    static private final long TEN_BLOCK          = 254L * HOSTS_PER_SLASH_16;                    // 10.0.0.1 - 10.253.253.253
+    static private final long ONE_NINETY_TWO     = TEN_BLOCK + HOSTS_PER_SLASH_16;                // 192.168.0.1 - 192.168.253.253
+    static private final long IP_PAIR_CAPACITY   = ONE_NINETY_TWO + (16L * HOSTS_PER_SLASH_16);   // 172.16.0.1 - 172.31.253.253
+
+    /**
+     * Maps a position in the bootstrap address sequence onto a private/public IP address pair. The private
+     * space is consumed in order from 10/8, then 192.168/16, then 172.16/12, and each public address is the
+     * private address with 15 added to its first octet.
+     * @param index the position in the address sequence
+     * @return the private and public IP addresses, in that order
+     * @throws CloudException the index lies beyond the end of the bootstrap address space
+     */
+    static private @Nonnull String[] toIpPair(long index) throws CloudException {
+        if( index < 0L || index >= IP_PAIR_CAPACITY ) {
+            throw new CloudException("Unable to allocate an IP address: all " + IP_PAIR_CAPACITY + " bootstrap addresses have been allocated (request #" + (index + 1) + ")");
+        }
+        int quad1, quad2;
+        long offset;
+
+        if( index < TEN_BLOCK ) {
+            quad1 = 10;
+            quad2 = (int)(index / HOSTS_PER_SLASH_16);
+            offset = index % HOSTS_PER_SLASH_16;
+        }
+        else if( index < ONE_NINETY_TWO ) {
+            quad1 = 192;
+            quad2 = 168;
+            offset = index - TEN_BLOCK;
+        }
+        else {
+            quad1 = 172;
+            quad2 = 16 + (int)((index - ONE_NINETY_TWO) / HOSTS_PER_SLASH_16);
+            offset = (index - ONE_NINETY_TWO) % HOSTS_PER_SLASH_16;
         }
+        int quad3 = (int)(offset / HOSTS_PER_SUBNET);
+        int quad4 = (int)(offset % HOSTS_PER_SUBNET) + 1;
+        StringBuilder privateIp = new StringBuilder(15);
+        StringBuilder publicIp = new StringBuilder(15);
+
+        privateIp.append(quad1).append('.').append(quad2).append('.').append(quad3).append('.').append(quad4);
+        publicIp.append(quad1 + 15).append('.').append(quad2).append('.').append(quad3).append('.').append(quad4);
+        return new String[] { privateIp.toString(), publicIp.toString() };
     }
 
-    static private @Nonnull String getNextId(@Nonnull String regionId) {
-        synchronized( mockList ) {
-            return (regionId + "-" + (nextId++));
-        }
+    static public String[] getNextIpPair() throws CloudException {
+        return toIpPair(nextIp.getAndIncrement());
     }
 
     static private @Nullable MockVM getMockVM(@Nonnull ProviderContext ctx, @Nonnull String vmId) {
         String endpoint = ctx.getEndpoint();
         String regionId = ctx.getRegionId();
 
-        synchronized( mockList ) {
-            Map<String, Map<String, Collection<MockVM>>> cloud = mockList.get(endpoint);
-
-            if( cloud != null ) {
-                Map<String,Collection<MockVM>> region = cloud.get(regionId);
-
-                if( region != null ) {
-                    for( Map.Entry<String,Collection<MockVM>> entry : region.entrySet() ) {
-                        for( MockVM vm : entry.getValue() ) {
-                            if( vm.vmId.equals(vmId) ) {
-                                return vm;
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        return null;
-    }
-
-    static private void checkMonitor() {
-        synchronized( mockList ) {
-            if( monitor == null ) {
-                monitor = new Thread() {
-                    public void run() {
-                        monitor();
-                    }
-                };
-                monitor.setDaemon(true);
-                monitor.setName("VM Monitor");
-                monitor.start();
-            }
+        if( endpoint == null || regionId == null ) {
+            return null;
         }
+        return store.get(endpoint, regionId, vmId);
     }
 
-    static private final Random random = new Random();
-
-    static private void monitor() {
-        //noinspection InfiniteLoopStatement
-        while( true ) {
-            try { Thread.sleep(15000L); }
-            catch( InterruptedException ignore ) { }
-            synchronized( mockList ) {
-                for( Map.Entry<String,Map<String,Map<String,Collection<MockVM>>>> clouds : mockList.entrySet() ) {
-                    for( Map.Entry<String,Map<String,Collection<MockVM>>> regions : clouds.getValue().entrySet() ) {
-                        for( Map.Entry<String,Collection<MockVM>> dcs : regions.getValue().entrySet() ) {
-                            for( MockVM vm : dcs.getValue() ) {
-                                switch( vm.currentState ) {
-                                    case RUNNING:
-                                        if( random.nextInt(5760) == 5 ) {
-                                            // whoops, crashed
-                                            vm.currentState = VmState.TERMINATED;
-                                            MockFirewallSupport.vmTerminated(vm.vmId);
-                                        }
-                                        break;
-                                    case PENDING:
-                                        if( random.nextInt(10) == 5 ) {
-                                            vm.currentState = VmState.RUNNING;
-                                        }
-                                        break;
-                                    case PAUSING:
-                                        if( random.nextInt(10) == 5 ) {
-                                            vm.currentState = VmState.PAUSED;
-                                        }
-                                        break;
-                                    case SUSPENDING:
-                                        if( random.nextInt(10) == 5 ) {
-                                            vm.currentState = VmState.SUSPENDED;
-                                        }
-                                        break;
-                                    case STOPPING:
-                                        if( random.nextInt(10) == 5 ) {
-                                            vm.currentState = VmState.STOPPED;
-                                        }
-                                        break;
-                                    case REBOOTING:
-                                        if( random.nextInt(10) == 5 ) {
-                                            vm.currentState = VmState.PENDING;
-                                        }
-                                        break;
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
+    /**
+     * Configures how long mock VMs remain in a transitional state before moving to the next state. Pass
+     * {@link VmState#RUNNING} to control how often running VMs crash.
+     * @param transitionalState the state whose latency is being configured
+     * @param latency the distribution from which the time spent in that state is sampled
+     * @throws IllegalArgumentException the specified state is not one the mock cloud transitions out of on its own
+     */
+    static public void setTransitionLatency(@Nonnull VmState transitionalState, @Nonnull TransitionLatency latency) {
+        scheduler.setLatency(transitionalState, latency);
     }
 
     private CloudProvider provider;
 
     public MockVMSupport(CloudProvider provider) {
         this.provider = provider;
-        checkMonitor();
     }
 
     @Override
@@ -300,12 +215,13 @@ public class MockVMSupport implements VirtualMachineSupport {
 
     @Override
     public @Nullable VirtualMachine getVirtualMachine(@Nonnull String vmId) throws InternalException, CloudException {
-        for( VirtualMachine vm : listVirtualMachines() ) {
-            if( vmId.equals(vm.getProviderVirtualMachineId()) ) {
-                return vm;
-            }
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
         }
-        return null;
+        // toVM() applies the same ownership and terminated visibility rules as listVirtualMachines()
+        return toVM(getMockVM(ctx, vmId));
     }
 
     @Override
@@ -393,165 +309,7 @@ public class MockVMSupport implements VirtualMachineSupport {
 
     @Override
     public @Nonnull VirtualMachine launch(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new CloudException("No context was provided for this request");
-        }
-        String regionId = ctx.getRegionId();
-
-        if( regionId == null ) {
-            throw new CloudException("No region was provided for this request");
-        }
-        String dcId = withLaunchOptions.getDataCenterId();
-
-        if( dcId == null ) {
-            for( DataCenter dc : provider.getDataCenterServices().listDataCenters(regionId) ) {
-                if( dc.isActive() && dc.isAvailable() ) {
-                    dcId = dc.getProviderDataCenterId();
-                    break;
-                }
-            }
-        }
-        if( dcId == null ) {
-            throw new CloudException("Unable to identify an available data center into which a VM may be launched");
-        }
-        MockVM newVm = new MockVM();
-
-        newVm.vmId = getNextId(regionId);
-        newVm.name = withLaunchOptions.getHostName();
-        newVm.description = withLaunchOptions.getDescription();
-        newVm.lastBoot = -1L;
-        newVm.lastPaused = -1L;
-        newVm.lastTouched = System.currentTimeMillis();
-        newVm.created = newVm.lastTouched;
-        newVm.owner = ctx.getAccountNumber();
-        newVm.currentState = VmState.PENDING;
-
-        if( !Requirement.NONE.equals(identifyPasswordRequirement()) ) {
-            if( Requirement.REQUIRED.equals(identifyPasswordRequirement()) ) {
-                if( newVm.rootUser == null || newVm.rootPassword == null ) {
-                    throw new CloudException("No user or password was provided for bootstrapping your VM");
-                }
-            }
-            newVm.rootUser = withLaunchOptions.getBootstrapUser();
-            newVm.rootPassword = withLaunchOptions.getBootstrapPassword();
-        }
-        if( !Requirement.NONE.equals(identifyShellKeyRequirement()) ) {
-            if( Requirement.REQUIRED.equals(identifyShellKeyRequirement()) ) {
-                throw new CloudException("No shell key was provided for bootstrapping your VM");
-            }
-            newVm.shellKey = withLaunchOptions.getBootstrapKey();
-        }
-
-        VirtualMachineProduct prd = getProduct(withLaunchOptions.getStandardProductId());
-
-        if( prd == null ) {
-            throw new CloudException("No such VM product: " + withLaunchOptions.getStandardProductId());
-        }
-        newVm.productId = prd.getProviderProductId();
-
-        String vlanId = withLaunchOptions.getVlanId();
-
-        if( vlanId != null ) {
-            NetworkServices network = provider.getNetworkServices();
-
-            if( network == null ) {
-                throw new CloudException("This cloud does not support network services");
-            }
-            VLANSupport support = network.getVlanSupport();
-
-            if( support == null ) {
-                throw new CloudException("This cloud does not support VLANs");
-            }
-            if( support.getSubnetSupport().equals(Requirement.NONE) ) {
-                VLAN vlan = support.getVlan(vlanId);
-
-                if( vlan == null ) {
-                    throw new CloudException("No such VLAN: " + vlanId);
-                }
-                newVm.vlanId = vlanId;
-            }
-            else if( support.getSubnetSupport().equals(Requirement.REQUIRED) ) {
-                Subnet subnet = support.getSubnet(vlanId);
-
-                if( subnet == null ) {
-                    throw new CloudException("No such subnet: " + vlanId);
-                }
-                newVm.subnetId = vlanId;
-                newVm.vlanId = subnet.getProviderVlanId();
-            }
-            else {
-                Subnet subnet = support.getSubnet(vlanId);
-                VLAN vlan;
-
-                if( subnet == null ) {
-                    vlan = support.getVlan(vlanId);
-                    if( vlan == null ) {
-                        throw new CloudException("No such VLAN or subnet: " + vlanId);
-                    }
-                    newVm.vlanId = vlanId;
-                }
-                else {
-                    newVm.subnetId = vlanId;
-                    newVm.vlanId = subnet.getProviderVlanId();
-                }
-            }
-        }
-        else {
-            String[] ips = getNextIpPair();
-
-            newVm.privateIpAddress = ips[0];
-            newVm.publicIpAddress = ips[1];
-        }
-        String[] firewalls = withLaunchOptions.getFirewallIds();
-
-        if( firewalls.length > 0 ) {
-            MockFirewallSupport.saveFirewallsForVM(provider, newVm.vmId, firewalls);
-        }
-
-        String imageId = withLaunchOptions.getMachineImageId();
-
-        ComputeServices services = provider.getComputeServices();
-        @SuppressWarnings("ConstantConditions") MachineImageSupport support = services.getImageSupport();
-        @SuppressWarnings("ConstantConditions") MachineImage image = support.getImage(imageId);
-
-        if( image == null ) {
-            throw new CloudException("No such machine image: " + imageId);
-        }
-        if( !image.getCurrentState().equals(MachineImageState.ACTIVE) ) {
-            throw new CloudException("Machine image " + imageId + " is not active");
-        }
-        newVm.imageId = imageId;
-        newVm.platform = image.getPlatform();
-
-        synchronized( mockList ) {
-            Map<String, Map<String, Collection<MockVM>>> cloud = mockList.get(ctx.getEndpoint());
-
-            if( cloud == null ) {
-                cloud = new HashMap<String, Map<String, Collection<MockVM>>>();
-                mockList.put(ctx.getEndpoint(), cloud);
-            }
-            Map<String, Collection<MockVM>> region = cloud.get(regionId);
-
-            if( region == null ) {
-                region = new HashMap<String, Collection<MockVM>>();
-                cloud.put(regionId, region);
-            }
-            Collection<MockVM> list = region.get(dcId);
-
-            if( list == null ) {
-                list = new ArrayList<MockVM>();
-                region.put(dcId, list);
-            }
-            list.add(newVm);
-        }
-        VirtualMachine vm = toVM(dcId, newVm);
-
-        if( vm == null ) {
-            throw new CloudException("VM launch failed without comment");
-        }
-        return vm;
+        return launchMany(withLaunchOptions, 1).get(0);
     }
 
     @Override
@@ -636,6 +394,85 @@ public class MockVMSupport implements VirtualMachineSupport {
         return launch(cfg);
     }
 
+    /**
+     * Launches a batch of identically configured virtual machines, as an auto-scaling group would. The
+     * launch options, including the firewalls, are validated once for the whole batch before anything is
+     * reserved. VM IDs and bootstrap IP addresses are then reserved as a single block and the VMs are added
+     * to the mock cloud in one batch. The batch is not inserted atomically: a concurrent listing may see
+     * some of its VMs before the rest.
+     * @param withLaunchOptions the options shared by every VM in the batch
+     * @param count the number of VMs to launch
+     * @return the newly launched virtual machines
+     * @throws CloudException the launch options are invalid or the cloud has run out of addresses
+     * @throws InternalException an error occurred within the mock cloud
+     */
+    public @Nonnull List<VirtualMachine> launchMany(@Nonnull VMLaunchOptions withLaunchOptions, @Nonnegative int count) throws CloudException, InternalException {
+        if( count < 1 ) {
+            throw new CloudException("At least one VM must be launched, not " + count);
+        }
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was provided for this request");
+        }
+        MockVM template = prepareLaunch(ctx, withLaunchOptions);
+        long firstId = nextId.getAndAdd(count);
+        long firstIp = -1L;
+
+        if( template.vlanId == null && template.subnetId == null ) {
+            while( true ) {
+                long current = nextIp.get();
+
+                if( current + count > IP_PAIR_CAPACITY ) {
+                    throw new CloudException("Unable to allocate " + count + " IP addresses: only " + Math.max(0L, IP_PAIR_CAPACITY - current) + " of " + IP_PAIR_CAPACITY + " bootstrap addresses remain");
+                }
+                if( nextIp.compareAndSet(current, current + count) ) {
+                    firstIp = current;
+                    break;
+                }
+            }
+        }
+        long now = MockClock.getInstance().currentTimeMillis();
+        ArrayList<MockVM> vms = new ArrayList<MockVM>(count);
+        ArrayList<String> vmIds = new ArrayList<String>(count);
+
+        for( int i=0; i<count; i++ ) {
+            MockVM newVm = template.copy();
+
+            newVm.vmId = (template.regionId + "-" + (firstId + i));
+            newVm.lastTouched = now;
+            newVm.created = now;
+            if( firstIp > -1L ) {
+                String[] ips = toIpPair(firstIp + i);
+
+                newVm.privateIpAddress = ips[0];
+                newVm.publicIpAddress = ips[1];
+            }
+            vms.add(newVm);
+            vmIds.add(newVm.vmId);
+        }
+        String[] firewalls = withLaunchOptions.getFirewallIds();
+
+        if( firewalls.length > 0 ) {
+            MockFirewallSupport.saveFirewallsForVMs(provider, vmIds, firewalls);
+        }
+        store.addAll(vms);
+
+        ArrayList<VirtualMachine> launched = new ArrayList<VirtualMachine>(count);
+
+        for( MockVM newVm : vms ) {
+            scheduler.schedule(newVm);
+
+            VirtualMachine vm = toVM(newVm);
+
+            if( vm == null ) {
+                throw new CloudException("VM launch failed without comment");
+            }
+            launched.add(vm);
+        }
+        return launched;
+    }
+
     @Override
     public @Nonnull Iterable<String> listFirewalls(@Nonnull String vmId) throws InternalException, CloudException {
         VirtualMachine vm = getVirtualMachine(vmId);
@@ -703,12 +540,43 @@ public class MockVMSupport implements VirtualMachineSupport {
 
     @Override
     public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
-        ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
+        return listVirtualMachineStatus(new ArrayList<ResourceStatus>());
+    }
+
+    /**
+     * Lists the status of every VM visible to the current context, reading IDs and states straight from
+     * the VM store without converting anything into {@link VirtualMachine} objects. Status objects are
+     * shared between calls until the VM changes state, so callers must not modify them.
+     * @param target the collection into which status entries are added; existing entries are left alone, so
+     *               a caller polling repeatedly may clear and reuse the same collection
+     * @param <T> the type of collection being filled
+     * @return the target collection
+     * @throws CloudException no context was set for this request
+     */
+    public @Nonnull <T extends Collection<ResourceStatus>> T listVirtualMachineStatus(@Nonnull T target) throws CloudException {
+        ProviderContext ctx = provider.getContext();
 
-        for( VirtualMachine vm : listVirtualMachines() ) {
-            status.add(new ResourceStatus(vm.getProviderVirtualMachineId(), vm.getCurrentState()));
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
         }
-        return status;
+        String endpoint = ctx.getEndpoint();
+        String regionId = ctx.getRegionId();
+        String owner = ctx.getAccountNumber();
+
+        if( endpoint == null || regionId == null || owner == null ) {
+            return target;
+        }
+        long now = MockClock.getInstance().currentTimeMillis();
+
+        for( MockVM mock : store.listByOwner(endpoint, regionId, owner) ) {
+            MockVM.StateStamp stamp = mock.getStateStamp();
+
+            if( isExpired(mock, stamp, now) ) {
+                continue;
+            }
+            target.add(mock.getResourceStatus(stamp));
+        }
+        return target;
     }
 
     @Override
@@ -720,40 +588,21 @@ public class MockVMSupport implements VirtualMachineSupport {
         }
         String endpoint = ctx.getEndpoint();
         String regionId = ctx.getRegionId();
+        String owner = ctx.getAccountNumber();
 
-        synchronized( mockList ) {
-            if( !mockList.containsKey(endpoint) ) {
-                return Collections.emptyList();
-            }
-            Map<String,Map<String,Collection<MockVM>>> list = mockList.get(endpoint);
-
-            if( !list.containsKey(regionId) ) {
-                return Collections.emptyList();
-            }
-            Map<String,Collection<MockVM>> vms = list.get(regionId);
-            ArrayList<VirtualMachine> matches = new ArrayList<VirtualMachine>();
-
-            for( String dc : vms.keySet() ) {
-                Collection<MockVM> c = vms.get(dc);
-
-                if( c != null ) {
-                    ArrayList<MockVM> replacement = new ArrayList<MockVM>();
+        if( endpoint == null || regionId == null || owner == null ) {
+            return Collections.emptyList();
+        }
+        ArrayList<VirtualMachine> matches = new ArrayList<VirtualMachine>();
 
-                    for( MockVM mock : c ) {
-                        VirtualMachine vm = toVM(dc, mock);
+        for( MockVM mock : store.listByOwner(endpoint, regionId, owner) ) {
+            VirtualMachine vm = toVM(mock);
 
-                        if( vm != null ) {
-                            matches.add(vm);
-                        }
-                        if( !mock.currentState.equals(VmState.TERMINATED) || ((System.currentTimeMillis() - mock.lastTouched) < (CalendarWrapper.MINUTE*10L)) ) {
-                            replacement.add(mock);
-                        }
-                    }
-                    vms.put(dc, replacement);
-                }
+            if( vm != null ) {
+                matches.add(vm);
             }
-            return matches;
         }
+        return matches;
     }
 
     @Override
@@ -763,17 +612,137 @@ public class MockVMSupport implements VirtualMachineSupport {
         if( ctx == null ) {
             throw new CloudException("No context was provider for this request");
         }
-        synchronized( mockList ) {
-            MockVM vm = getMockVM(ctx, vmId);
+        MockVM vm = getMockVM(ctx, vmId);
 
-            if( vm == null ) {
-                throw new CloudException("No such VM: " + vmId);
+        if( vm == null ) {
+            throw new CloudException("No such VM: " + vmId);
+        }
+        if( !scheduler.transition(vm, VmState.RUNNING, VmState.PAUSING) ) {
+            throw new CloudException("The virtual machine must be running in order to be paused");
+        }
+    }
+
+    private @Nonnull MockVM prepareLaunch(@Nonnull ProviderContext ctx, @Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
+        String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            throw new CloudException("No region was provided for this request");
+        }
+        String dcId = withLaunchOptions.getDataCenterId();
+
+        if( dcId == null ) {
+            for( DataCenter dc : provider.getDataCenterServices().listDataCenters(regionId) ) {
+                if( dc.isActive() && dc.isAvailable() ) {
+                    dcId = dc.getProviderDataCenterId();
+                    break;
+                }
             }
-            if( !vm.currentState.equals(VmState.RUNNING) ) {
-                throw new CloudException("The virtual machine must be running in order to be paused");
+        }
+        if( dcId == null ) {
+            throw new CloudException("Unable to identify an available data center into which a VM may be launched");
+        }
+        MockVM newVm = new MockVM();
+
+        newVm.endpoint = ctx.getEndpoint();
+        newVm.regionId = regionId;
+        newVm.dataCenterId = dcId;
+        newVm.name = withLaunchOptions.getHostName();
+        newVm.description = withLaunchOptions.getDescription();
+        newVm.lastBoot = -1L;
+        newVm.lastPaused = -1L;
+        newVm.owner = ctx.getAccountNumber();
+
+        if( !Requirement.NONE.equals(identifyPasswordRequirement()) ) {
+            if( Requirement.REQUIRED.equals(identifyPasswordRequirement()) ) {
+                if( newVm.rootUser == null || newVm.rootPassword == null ) {
+                    throw new CloudException("No user or password was provided for bootstrapping your VM");
+                }
             }
-            vm.currentState = VmState.PAUSING;
+            newVm.rootUser = withLaunchOptions.getBootstrapUser();
+            newVm.rootPassword = withLaunchOptions.getBootstrapPassword();
         }
+        if( !Requirement.NONE.equals(identifyShellKeyRequirement()) ) {
+            if( Requirement.REQUIRED.equals(identifyShellKeyRequirement()) ) {
+                throw new CloudException("No shell key was provided for bootstrapping your VM");
+            }
+            newVm.shellKey = withLaunchOptions.getBootstrapKey();
+        }
+
+        VirtualMachineProduct prd = getProduct(withLaunchOptions.getStandardProductId());
+
+        if( prd == null ) {
+            throw new CloudException("No such VM product: " + withLaunchOptions.getStandardProductId());
+        }
+        newVm.productId = prd.getProviderProductId();
+
+        String vlanId = withLaunchOptions.getVlanId();
+
+        if( vlanId != null ) {
+            NetworkServices network = provider.getNetworkServices();
+
+            if( network == null ) {
+                throw new CloudException("This cloud does not support network services");
+            }
+            VLANSupport support = network.getVlanSupport();
+
+            if( support == null ) {
+                throw new CloudException("This cloud does not support VLANs");
+            }
+            if( support.getSubnetSupport().equals(Requirement.NONE) ) {
+                VLAN vlan = support.getVlan(vlanId);
+
+                if( vlan == null ) {
+                    throw new CloudException("No such VLAN: " + vlanId);
+                }
+                newVm.vlanId = vlanId;
+            }
+            else if( support.getSubnetSupport().equals(Requirement.REQUIRED) ) {
+                Subnet subnet = support.getSubnet(vlanId);
+
+                if( subnet == null ) {
+                    throw new CloudException("No such subnet: " + vlanId);
+                }
+                newVm.subnetId = vlanId;
+                newVm.vlanId = subnet.getProviderVlanId();
+            }
+            else {
+                Subnet subnet = support.getSubnet(vlanId);
+                VLAN vlan;
+
+                if( subnet == null ) {
+                    vlan = support.getVlan(vlanId);
+                    if( vlan == null ) {
+                        throw new CloudException("No such VLAN or subnet: " + vlanId);
+                    }
+                    newVm.vlanId = vlanId;
+                }
+                else {
+                    newVm.subnetId = vlanId;
+                    newVm.vlanId = subnet.getProviderVlanId();
+                }
+            }
+        }
+        String imageId = withLaunchOptions.getMachineImageId();
+
+        ComputeServices services = provider.getComputeServices();
+        @SuppressWarnings("ConstantConditions") MachineImageSupport support = services.getImageSupport();
+        @SuppressWarnings("ConstantConditions") MachineImage image = support.getImage(imageId);
+
+        if( image == null ) {
+            throw new CloudException("No such machine image: " + imageId);
+        }
+        if( !image.getCurrentState().equals(MachineImageState.ACTIVE) ) {
+            throw new CloudException("Machine image " + imageId + " is not active");
+        }
+        newVm.imageId = imageId;
+        newVm.platform = image.getPlatform();
+
+        String[] firewallIds = withLaunchOptions.getFirewallIds();
+
+        if( firewallIds.length > 0 ) {
+            MockFirewallSupport.validateFirewalls(provider, firewallIds);
+        }
+        return newVm;
     }
 
     @Override
@@ -783,16 +752,13 @@ public class MockVMSupport implements VirtualMachineSupport {
         if( ctx == null ) {
             throw new CloudException("No context was provider for this request");
         }
-        synchronized( mockList ) {
-            MockVM vm = getMockVM(ctx, vmId);
+        MockVM vm = getMockVM(ctx, vmId);
 
-            if( vm == null ) {
-                throw new CloudException("No such VM: " + vmId);
-            }
-            if( !vm.currentState.equals(VmState.RUNNING) ) {
-                throw new CloudException("The virtual machine must be running in order to be rebooted");
-            }
-            vm.currentState = VmState.REBOOTING;
+        if( vm == null ) {
+            throw new CloudException("No such VM: " + vmId);
+        }
+        if( !scheduler.transition(vm, VmState.RUNNING, VmState.REBOOTING) ) {
+            throw new CloudException("The virtual machine must be running in order to be rebooted");
         }
     }
 
@@ -803,16 +769,13 @@ public class MockVMSupport implements VirtualMachineSupport {
         if( ctx == null ) {
             throw new CloudException("No context was provider for this request");
         }
-        synchronized( mockList ) {
-            MockVM vm = getMockVM(ctx, vmId);
+        MockVM vm = getMockVM(ctx, vmId);
 
-            if( vm == null ) {
-                throw new CloudException("No such VM: " + vmId);
-            }
-            if( !vm.currentState.equals(VmState.SUSPENDED) ) {
-                throw new CloudException("The virtual machine must be suspended in order to be resumed");
-            }
-            vm.currentState = VmState.PENDING;
+        if( vm == null ) {
+            throw new CloudException("No such VM: " + vmId);
+        }
+        if( !scheduler.transition(vm, VmState.SUSPENDED, VmState.PENDING) ) {
+            throw new CloudException("The virtual machine must be suspended in order to be resumed");
         }
     }
 
@@ -823,16 +786,13 @@ public class MockVMSupport implements VirtualMachineSupport {
         if( ctx == null ) {
             throw new CloudException("No context was provider for this request");
         }
-        synchronized( mockList ) {
-            MockVM vm = getMockVM(ctx, vmId);
+        MockVM vm = getMockVM(ctx, vmId);
 
-            if( vm == null ) {
-                throw new CloudException("No such VM: " + vmId);
-            }
-            if( !vm.currentState.equals(VmState.STOPPED) ) {
-                throw new CloudException("The virtual machine must be stopped in order to be started");
-            }
-            vm.currentState = VmState.PENDING;
+        if( vm == null ) {
+            throw new CloudException("No such VM: " + vmId);
+        }
+        if( !scheduler.transition(vm, VmState.STOPPED, VmState.PENDING) ) {
+            throw new CloudException("The virtual machine must be stopped in order to be started");
         }
     }
 
@@ -848,16 +808,13 @@ public class MockVMSupport implements VirtualMachineSupport {
         if( ctx == null ) {
             throw new CloudException("No context was provider for this request");
         }
-        synchronized( mockList ) {
-            MockVM vm = getMockVM(ctx, vmId);
+        MockVM vm = getMockVM(ctx, vmId);
 
-            if( vm == null ) {
-                throw new CloudException("No such VM: " + vmId);
-            }
-            if( !vm.currentState.equals(VmState.RUNNING) ) {
-                throw new CloudException("The virtual machine must be running in order to be stopped");
-            }
-            vm.currentState = VmState.STOPPING;
+        if( vm == null ) {
+            throw new CloudException("No such VM: " + vmId);
+        }
+        if( !scheduler.transition(vm, VmState.RUNNING, VmState.STOPPING) ) {
+            throw new CloudException("The virtual machine must be running in order to be stopped");
         }
     }
 
@@ -888,16 +845,13 @@ public class MockVMSupport implements VirtualMachineSupport {
         if( ctx == null ) {
             throw new CloudException("No context was provider for this request");
         }
-        synchronized( mockList ) {
-            MockVM vm = getMockVM(ctx, vmId);
+        MockVM vm = getMockVM(ctx, vmId);
 
-            if( vm == null ) {
-                throw new CloudException("No such VM: " + vmId);
-            }
-            if( !vm.currentState.equals(VmState.RUNNING) ) {
-                throw new CloudException("The virtual machine must be running in order to be suspended");
-            }
-            vm.currentState = VmState.SUSPENDING;
+        if( vm == null ) {
+            throw new CloudException("No such VM: " + vmId);
+        }
+        if( !scheduler.transition(vm, VmState.RUNNING, VmState.SUSPENDING) ) {
+            throw new CloudException("The virtual machine must be running in order to be suspended");
         }
     }
 
@@ -908,20 +862,23 @@ public class MockVMSupport implements VirtualMachineSupport {
         if( ctx == null ) {
             throw new CloudException("No context was provider for this request");
         }
-        String ip;
+        MockVM vm = getMockVM(ctx, vmId);
 
-        synchronized( mockList ) {
-            MockVM vm = getMockVM(ctx, vmId);
+        if( vm == null ) {
+            throw new CloudException("No such VM: " + vmId);
+        }
+        String ip = MockIPSupport.getIPAddressForVM(vm.vmId);
 
-            if( vm == null ) {
-                throw new CloudException("No such VM: " + vmId);
-            }
-            ip = MockIPSupport.getIPAddressForVM(vm.vmId);
-            if( vm.currentState.equals(VmState.TERMINATED) ) {
+        while( true ) {
+            MockVM.StateStamp current = vm.getStateStamp();
+
+            if( current.state.equals(VmState.TERMINATED) ) {
                 throw new CloudException("The virtual machine is already terminated.");
             }
-            vm.currentState = VmState.TERMINATED;
-            vm.lastTouched = System.currentTimeMillis();
+            vm.lastTouched = MockClock.getInstance().currentTimeMillis();
+            if( scheduler.transition(vm, current, VmState.TERMINATED) ) {
+                break;
+            }
         }
         if( ip != null ) {
             //noinspection ConstantConditions
@@ -937,16 +894,13 @@ public class MockVMSupport implements VirtualMachineSupport {
         if( ctx == null ) {
             throw new CloudException("No context was provider for this request");
         }
-        synchronized( mockList ) {
-            MockVM vm = getMockVM(ctx, vmId);
+        MockVM vm = getMockVM(ctx, vmId);
 
-            if( vm == null ) {
-                throw new CloudException("No such VM: " + vmId);
-            }
-            if( !vm.currentState.equals(VmState.PAUSED) ) {
-                throw new CloudException("The virtual machine must be paused in order to be unpaused");
-            }
-            vm.currentState = VmState.PAUSING;
+        if( vm == null ) {
+            throw new CloudException("No such VM: " + vmId);
+        }
+        if( !scheduler.transition(vm, VmState.PAUSED, VmState.PAUSING) ) {
+            throw new CloudException("The virtual machine must be paused in order to be unpaused");
         }
     }
 
@@ -960,11 +914,15 @@ public class MockVMSupport implements VirtualMachineSupport {
         return new String[0];
     }
 
-    private @Nullable VirtualMachine toVM(@Nonnull String dcId, @Nullable MockVM mock) throws CloudException {
+    static private boolean isExpired(@Nonnull MockVM mock, @Nonnull MockVM.StateStamp stamp, long now) {
+        return (stamp.state.equals(VmState.TERMINATED) && (now - mock.lastTouched) > MockVMScheduler.TERMINATED_RETENTION);
+    }
+
+    private @Nullable VirtualMachine toVM(@Nullable MockVM mock) throws CloudException {
         if( mock == null ) {
             return null;
         }
-        if( mock.currentState.equals(VmState.TERMINATED) && ((System.currentTimeMillis() - mock.lastTouched) > (CalendarWrapper.MINUTE*10L)) ) {
+        if( isExpired(mock, mock.getStateStamp(), MockClock.getInstance().currentTimeMillis()) ) {
             return null;
         }
         ProviderContext ctx = provider.getContext();
@@ -975,6 +933,8 @@ public class MockVMSupport implements VirtualMachineSupport {
         if( !mock.owner.equals(ctx.getAccountNumber()) ) {
             return null;
         }
+        MockVM.StateStamp stamp = mock.getStateStamp();
+        String ipAddressId = MockIPSupport.getIPAddressForVM(mock.vmId);
         VirtualMachine vm = new VirtualMachine();
 
         vm.setImagable(true);
@@ -986,10 +946,10 @@ public class MockVMSupport implements VirtualMachineSupport {
         vm.setPlatform(mock.platform);
         vm.setPrivateAddresses(new RawAddress(mock.privateIpAddress));
         vm.setProductId(mock.productId);
-        vm.setProviderDataCenterId(dcId);
+        vm.setProviderDataCenterId(mock.dataCenterId);
         vm.setProviderMachineImageId(mock.imageId);
         vm.setProviderOwnerId(mock.owner);
-        vm.setProviderRegionId(ctx.getRegionId());
+        vm.setProviderRegionId(mock.regionId);
         vm.setProviderSubnetId(mock.subnetId);
         vm.setProviderVirtualMachineId(mock.vmId);
         vm.setProviderVlanId(mock.vlanId);
@@ -998,16 +958,16 @@ public class MockVMSupport implements VirtualMachineSupport {
         vm.setRootPassword(mock.rootPassword);
         vm.setRootUser(mock.rootUser);
         vm.setArchitecture(Architecture.I64);
-        if( mock.currentState.equals(VmState.TERMINATED) ) {
+        if( stamp.state.equals(VmState.TERMINATED) ) {
             vm.setTerminationTimestamp(mock.lastTouched);
         }
         vm.setClonable(false);
         vm.setCreationTimestamp(mock.created);
-        vm.setCurrentState(mock.currentState);
+        vm.setCurrentState(stamp.state);
         vm.setDescription(mock.description);
-        vm.setProviderAssignedIpAddressId(MockIPSupport.getIPAddressForVM(mock.vmId));
-        if( vm.getProviderAssignedIpAddressId() != null ) {
-            vm.setPublicAddresses(new RawAddress(vm.getProviderAssignedIpAddressId()));
+        vm.setProviderAssignedIpAddressId(ipAddressId);
+        if( ipAddressId != null ) {
+            vm.setPublicAddresses(new RawAddress(ipAddressId));
         }
         return vm;
     }
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.compute.vm;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * A distribution from which the mock cloud samples how long a virtual machine spends in a transitional
+ * state before moving on to its next state. Configure the distributions used by the mock cloud through
+ * {@link MockVMSupport#setTransitionLatency(org.dasein.cloud.compute.VmState, TransitionLatency)}.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public abstract class TransitionLatency {
+    /**
+     * @param millis the exact number of milliseconds every transition takes
+     * @return a latency that always yields the same delay
+     */
+    static public @Nonnull TransitionLatency fixed(@Nonnegative final long millis) {
+        return new TransitionLatency() {
+            @Override
+            public long sample(@Nonnull Random random) {
+                return millis;
+            }
+        };
+    }
+
+    /**
+     * @param minimum the shortest delay in milliseconds
+     * @param maximum the longest delay in milliseconds
+     * @return a latency uniformly distributed between the minimum and maximum, inclusive
+     */
+    static public @Nonnull TransitionLatency uniform(@Nonnegative final long minimum, @Nonnegative final long maximum) {
+        if( maximum < minimum ) {
+            throw new IllegalArgumentException("Maximum latency " + maximum + " is less than the minimum " + minimum);
+        }
+        return new TransitionLatency() {
+            @Override
+            public long sample(@Nonnull Random random) {
+                return minimum + (long)(random.nextDouble() * (maximum - minimum + 1));
+            }
+        };
+    }
+
+    /**
+     * @param mean the average delay in milliseconds
+     * @return a latency exponentially distributed around the mean, which is how the mock cloud has always behaved
+     */
+    static public @Nonnull TransitionLatency exponential(@Nonnegative final long mean) {
+        return new TransitionLatency() {
+            @Override
+            public long sample(@Nonnull Random random) {
+                return (long)(-Math.log(1.0 - random.nextDouble()) * mean);
+            }
+        };
+    }
+
+    /**
+     * @return a latency that never elapses, effectively disabling the transition
+     */
+    static public @Nonnull TransitionLatency never() {
+        return new TransitionLatency() {
+            @Override
+            public long sample(@Nonnull Random random) {
+                return -1L;
+            }
+        };
+    }
+
+    /**
+     * Samples a delay from this distribution.
+     * @param random the source of randomness to use
+     * @return the delay in milliseconds, or a negative value if the transition should never happen
+     */
+    public abstract long sample(@Nonnull Random random);
+}
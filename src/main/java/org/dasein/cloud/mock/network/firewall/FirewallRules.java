@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.network.firewall;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.network.FirewallRule;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The rules belonging to a single mock firewall, keyed by provider rule ID in the order they were
+ * authorized and indexed by their canonical key from {@link MockFirewallSupport#toRuleKey(FirewallRule)}.
+ * Adding, removing, and finding a rule are all constant time, and a firewall never holds two rules with
+ * the same effect. Rules are published copy-on-write: each writer synchronizes on the firewall's rules,
+ * builds a new immutable, versioned {@link Snapshot} before releasing the monitor, and publishes it through
+ * a volatile field. Readers never take the monitor, so reading never blocks on a writer or sees a rule set
+ * in the middle of a change.
+ * Writers also maintain the shared index from provider rule ID to owning rule set inside the same critical
+ * section, so the index always agrees with the rules. Once the firewall is deleted, its rules are closed
+ * and every further change is rejected.
+ * @version 2013.02
+ * @since 2013.02
+ */
+class FirewallRules {
+    /**
+     * An immutable view of a firewall's rules as of a specific version, along with the compiled evaluation
+     * index over those rules. Versions increase with every change to the firewall's rules.
+     */
+    static final class Snapshot {
+        final long               version;
+        final List<FirewallRule> rules;
+
+        private volatile RuleIndex index;
+
+        private Snapshot(long version, @Nonnull List<FirewallRule> rules) {
+            this.version = version;
+            this.rules = rules;
+        }
+
+        /**
+         * Provides the compiled evaluation index over the rules in this snapshot, compiling it on first use.
+         * @return the compiled index
+         */
+        @Nonnull RuleIndex getIndex() {
+            RuleIndex idx = index;
+
+            if( idx == null ) {
+                idx = RuleIndex.compile(rules);
+                index = idx;
+            }
+            return idx;
+        }
+    }
+
+    private final ConcurrentMap<String,FirewallRules> owners;
+    private final LinkedHashMap<String,FirewallRule>  rules    = new LinkedHashMap<String, FirewallRule>();
+    private final HashMap<String,String>              keys     = new HashMap<String, String>();
+    private boolean                                   closed   = false;
+    private volatile Snapshot                         snapshot = new Snapshot(0L, Collections.<FirewallRule>emptyList());
+
+    /**
+     * Creates an empty rule set.
+     * @param owners the shared index from provider rule ID to the rule set holding that rule
+     */
+    FirewallRules(@Nonnull ConcurrentMap<String,FirewallRules> owners) {
+        this.owners = owners;
+    }
+
+    /**
+     * Adds a rule to this firewall unless an equivalent rule is already present.
+     * @param rule the rule to add
+     * @return the rule now in place, which is the specified rule if it was added or the existing equivalent rule
+     * @throws CloudException the firewall has been deleted
+     */
+    synchronized @Nonnull FirewallRule add(@Nonnull FirewallRule rule) throws CloudException {
+        checkOpen();
+        String key = MockFirewallSupport.toRuleKey(rule);
+        FirewallRule current = find(key);
+
+        if( current != null ) {
+            return current;
+        }
+        rules.put(rule.getProviderRuleId(), rule);
+        keys.put(key, rule.getProviderRuleId());
+        owners.put(rule.getProviderRuleId(), this);
+        changed();
+        return rule;
+    }
+
+    private void checkOpen() throws CloudException {
+        if( closed ) {
+            throw new CloudException("The firewall has been deleted");
+        }
+    }
+
+    /**
+     * Removes every rule and rejects any further change. Called when the firewall is deleted.
+     */
+    synchronized void close() {
+        for( String ruleId : rules.keySet() ) {
+            owners.remove(ruleId, this);
+        }
+        rules.clear();
+        keys.clear();
+        closed = true;
+        changed();
+    }
+
+    private void changed() {
+        snapshot = new Snapshot(snapshot.version + 1L, Collections.unmodifiableList(new ArrayList<FirewallRule>(rules.values())));
+    }
+
+    /**
+     * Finds the rule with the specified canonical key.
+     * @param key the canonical key of the rule
+     * @return the matching rule or <code>null</code> if this firewall has no such rule
+     */
+    synchronized @Nullable FirewallRule find(@Nonnull String key) {
+        String ruleId = keys.get(key);
+
+        return (ruleId == null ? null : rules.get(ruleId));
+    }
+
+    /**
+     * Provides the most recently published snapshot of the rules without taking the monitor.
+     * @return the current snapshot
+     */
+    @Nonnull Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Replaces the rules of this firewall with the specified rules in a single step, keeping rules that are
+     * already present, removing those that are not wanted, and adding those that are missing. Readers see
+     * either the old rule set or the new one, never a mix.
+     * @param desired the wanted rules keyed by canonical key
+     * @param added receives the rules that were added
+     * @param removed receives the rules that were removed
+     * @throws CloudException the firewall has been deleted
+     */
+    synchronized void sync(@Nonnull Map<String,FirewallRule> desired, @Nonnull List<FirewallRule> added, @Nonnull List<FirewallRule> removed) throws CloudException {
+        checkOpen();
+        Iterator<Map.Entry<String,String>> it = keys.entrySet().iterator();
+
+        while( it.hasNext() ) {
+            Map.Entry<String,String> entry = it.next();
+
+            if( !desired.containsKey(entry.getKey()) ) {
+                removed.add(rules.remove(entry.getValue()));
+                owners.remove(entry.getValue(), this);
+                it.remove();
+            }
+        }
+        for( Map.Entry<String,FirewallRule> entry : desired.entrySet() ) {
+            FirewallRule rule = entry.getValue();
+
+            if( !keys.containsKey(entry.getKey()) ) {
+                rules.put(rule.getProviderRuleId(), rule);
+                keys.put(entry.getKey(), rule.getProviderRuleId());
+                owners.put(rule.getProviderRuleId(), this);
+                added.add(rule);
+            }
+        }
+        if( !added.isEmpty() || !removed.isEmpty() ) {
+            changed();
+        }
+    }
+
+    synchronized @Nullable FirewallRule remove(@Nonnull String ruleId) {
+        FirewallRule rule = rules.remove(ruleId);
+
+        if( rule != null ) {
+            keys.remove(MockFirewallSupport.toRuleKey(rule));
+            owners.remove(ruleId, this);
+            changed();
+        }
+        return rule;
+    }
+
+    /**
+     * Removes the rule with the specified canonical key.
+     * @param key the canonical key of the rule
+     * @return the removed rule or <code>null</code> if this firewall had no such rule
+     */
+    synchronized @Nullable FirewallRule removeByKey(@Nonnull String key) {
+        FirewallRule rule = find(key);
+
+        return (rule == null ? null : remove(rule.getProviderRuleId()));
+    }
+}
@@ -25,10 +25,6 @@ import org.dasein.cloud.OperationNotSupportedException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.Requirement;
 import org.dasein.cloud.ResourceStatus;
-import org.dasein.cloud.compute.ComputeServices;
-import org.dasein.cloud.compute.VirtualMachine;
-import org.dasein.cloud.compute.VirtualMachineSupport;
-import org.dasein.cloud.compute.VmState;
 import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.network.Direction;
 import org.dasein.cloud.network.Firewall;
@@ -42,13 +38,21 @@ import org.dasein.cloud.network.RuleTargetType;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implements bi-directional mock firewall support.
@@ -58,9 +62,70 @@ import java.util.UUID;
  * @since 2012.09
  */
 public class MockFirewallSupport implements FirewallSupport {
-    static private final Map<String,Map<String,Map<String,Collection<Firewall>>>> firewalls = new HashMap<String, Map<String, Map<String, Collection<Firewall>>>>();
-    static private final Map<String,Collection<FirewallRule>>                     rules     = new HashMap<String, Collection<FirewallRule>>();
-    static private final Map<String,Collection<String>>                           vmMap     = new HashMap<String, Collection<String>>();
+    // endpoint, region, and account -> firewall ID -> firewall; also the lock guarding VM membership state
+    static private final ConcurrentHashMap<String,ConcurrentHashMap<String,Firewall>> firewalls  = new ConcurrentHashMap<String, ConcurrentHashMap<String, Firewall>>();
+    static private final ConcurrentHashMap<String,FirewallRules>                      rules      = new ConcurrentHashMap<String, FirewallRules>();
+    // provider rule ID -> rules of the firewall holding that rule; only ever changed by FirewallRules
+    static private final ConcurrentHashMap<String,FirewallRules>                      ruleOwners = new ConcurrentHashMap<String, FirewallRules>();
+    static private final Map<String,Collection<String>>                               vmMap      = new HashMap<String, Collection<String>>();
+    // firewall ID -> VMs behind that firewall, the reverse of vmMap
+    static private final Map<String,Set<String>>                                      members    = new HashMap<String, Set<String>>();
+    static private final Map<String,EffectiveRules>                                   effective  = new HashMap<String, EffectiveRules>();
+
+    /**
+     * The merged rules of every firewall protecting a VM, along with the firewall list and the versions of
+     * the rule snapshots they were built from. The entry is current only while the VM is behind the same
+     * firewall list and every one of those firewalls still publishes the same version. Keeping versions
+     * rather than the snapshots themselves lets superseded snapshots and their indexes be collected.
+     */
+    static private final class EffectiveRules {
+        private final Collection<String> firewallIds;
+        private final long[]             versions;
+        private final List<FirewallRule> rules;
+
+        private EffectiveRules(@Nonnull Collection<String> firewallIds, @Nonnull long[] versions, @Nonnull List<FirewallRule> rules) {
+            this.firewallIds = firewallIds;
+            this.versions = versions;
+            this.rules = rules;
+        }
+
+        private boolean isCurrent(@Nonnull Collection<String> firewallIds) {
+            if( firewallIds != this.firewallIds ) {
+                return false;
+            }
+            int i = 0;
+
+            for( String firewallId : firewallIds ) {
+                if( toVersion(getSnapshot(firewallId)) != versions[i++] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static private final Comparator<FirewallRule> ruleOrder = new Comparator<FirewallRule>() {
+        public int compare(FirewallRule a, FirewallRule b) {
+            int c = a.getDirection().compareTo(b.getDirection());
+
+            if( c == 0 ) {
+                c = a.getProtocol().compareTo(b.getProtocol());
+            }
+            if( c == 0 ) {
+                c = (a.getStartPort() < b.getStartPort() ? -1 : (a.getStartPort() == b.getStartPort() ? 0 : 1));
+            }
+            if( c == 0 ) {
+                c = (a.getEndPort() < b.getEndPort() ? -1 : (a.getEndPort() == b.getEndPort() ? 0 : 1));
+            }
+            if( c == 0 ) {
+                c = a.getPermission().compareTo(b.getPermission());
+            }
+            if( c == 0 ) {
+                c = a.getProviderRuleId().compareTo(b.getProviderRuleId());
+            }
+            return c;
+        }
+    };
 
     @SuppressWarnings("ConstantConditions")
     static private @Nonnull Firewall copy(@Nonnull Firewall fw) {
@@ -76,9 +141,136 @@ public class MockFirewallSupport implements FirewallSupport {
         return copy;
     }
 
+    static private @Nonnull String toCatalogKey(@Nonnull ProviderContext ctx, @Nonnull String regionId) {
+        return (ctx.getEndpoint() + "|" + regionId + "|" + ctx.getAccountNumber());
+    }
+
+    /**
+     * Provides the firewalls of the account and region in the specified context, creating an empty catalog
+     * the first time an account touches a region. The default firewall is provisioned by {@link #list()},
+     * not here.
+     * @param ctx the context of the request
+     * @param regionId the region of the request
+     * @return the firewalls of the account in the region, keyed by firewall ID
+     */
+    static private @Nonnull ConcurrentHashMap<String,Firewall> getCatalog(@Nonnull ProviderContext ctx, @Nonnull String regionId) {
+        String key = toCatalogKey(ctx, regionId);
+        ConcurrentHashMap<String,Firewall> catalog = firewalls.get(key);
+
+        if( catalog == null ) {
+            ConcurrentHashMap<String,Firewall> created = new ConcurrentHashMap<String, Firewall>();
+
+            catalog = firewalls.putIfAbsent(key, created);
+            if( catalog == null ) {
+                catalog = created;
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Provides the rules of a firewall. Every firewall gets its rule set when it is created, so a missing
+     * rule set means the firewall has been deleted.
+     */
+    static private @Nonnull FirewallRules getRuleSet(@Nonnull String firewallId) throws CloudException {
+        FirewallRules list = rules.get(firewallId);
+
+        if( list == null ) {
+            throw new CloudException("No such firewall: " + firewallId);
+        }
+        return list;
+    }
+
+    static private @Nonnull Firewall newFirewall(@Nonnull String regionId, @Nonnull String name, @Nonnull String description) {
+        Firewall fw = new Firewall();
+
+        fw.setActive(true);
+        fw.setAvailable(true);
+        fw.setDescription(description);
+        fw.setName(name);
+        fw.setProviderFirewallId(UUID.randomUUID().toString());
+        fw.setRegionId(regionId);
+        rules.put(fw.getProviderFirewallId(), new FirewallRules(ruleOwners));
+        return fw;
+    }
+
     static public void vmTerminated(@Nonnull String vmId) {
         synchronized( firewalls ) {
-            vmMap.remove(vmId);
+            removeMember(vmId, vmMap.remove(vmId));
+            effective.remove(vmId);
+        }
+    }
+
+    static private @Nullable FirewallRules.Snapshot getSnapshot(@Nonnull String firewallId) {
+        FirewallRules list = rules.get(firewallId);
+
+        return (list == null ? null : list.getSnapshot());
+    }
+
+    static private long toVersion(@Nullable FirewallRules.Snapshot snapshot) {
+        return (snapshot == null ? -1L : snapshot.version);
+    }
+
+    /**
+     * Provides the effective rules of a VM: the rules of every firewall protecting it, merged and sorted by
+     * direction, protocol, port range, and permission. The merged view is cached per VM. Moving the VM to
+     * other firewalls or terminating it drops the cached view. A change to the rules of any of its firewalls
+     * publishes a new rule snapshot version, so the view is rebuilt on next use. Checking that a cached view
+     * is still current costs one version comparison per firewall.
+     * @param vmId the VM whose effective rules are requested
+     * @return the VM's effective rules, which are shared and must not be modified
+     */
+    static public @Nonnull List<FirewallRule> getEffectiveRules(@Nonnull String vmId) {
+        Collection<String> ids;
+        EffectiveRules cached;
+
+        synchronized( firewalls ) {
+            ids = vmMap.get(vmId);
+            cached = effective.get(vmId);
+        }
+        if( ids == null ) {
+            return Collections.emptyList();
+        }
+        if( cached != null && cached.isCurrent(ids) ) {
+            return cached.rules;
+        }
+        long[] versions = new long[ids.size()];
+        ArrayList<FirewallRule> merged = new ArrayList<FirewallRule>();
+        int i = 0;
+
+        for( String firewallId : ids ) {
+            FirewallRules.Snapshot snapshot = getSnapshot(firewallId);
+
+            versions[i++] = toVersion(snapshot);
+            if( snapshot != null ) {
+                merged.addAll(snapshot.rules);
+            }
+        }
+        Collections.sort(merged, ruleOrder);
+
+        EffectiveRules entry = new EffectiveRules(ids, versions, Collections.unmodifiableList(merged));
+
+        synchronized( firewalls ) {
+            if( vmMap.get(vmId) == ids ) {
+                effective.put(vmId, entry);
+            }
+        }
+        return entry.rules;
+    }
+
+    static private void removeMember(@Nonnull String vmId, @Nullable Collection<String> firewallIds) {
+        if( firewallIds == null ) {
+            return;
+        }
+        for( String firewallId : firewallIds ) {
+            Set<String> vms = members.get(firewallId);
+
+            if( vms != null ) {
+                vms.remove(vmId);
+                if( vms.isEmpty() ) {
+                    members.remove(firewallId);
+                }
+            }
         }
     }
 
@@ -94,7 +286,69 @@ public class MockFirewallSupport implements FirewallSupport {
         return Collections.unmodifiableCollection(ids);
     }
 
+    /**
+     * Evaluates whether the firewalls protecting a VM allow the specified traffic. Each firewall's rules are
+     * compiled into a {@link RuleIndex} lazily, on the first evaluation after the rules change, so an
+     * evaluation usually costs a few trie walks rather than a scan of every rule. Only the lookup of the VM's
+     * firewalls happens under the global lock; compiling and matching run outside it. A matching DENY rule
+     * in any of the VM's firewalls overrides any matching ALLOW rule, and traffic that matches no rule is
+     * denied. Only rules whose remote side is an IPv4 CIDR take part in the evaluation.
+     * @param vmId the VM whose firewalls are evaluated
+     * @param direction the direction of the traffic relative to the VM
+     * @param remoteIp the IPv4 address at the other end of the traffic
+     * @param protocol the protocol of the traffic
+     * @param port the port on which the traffic arrives or leaves
+     * @return true if the traffic is allowed
+     * @throws CloudException the remote address is not an IPv4 address
+     */
+    static public boolean isAllowed(@Nonnull String vmId, @Nonnull Direction direction, @Nonnull String remoteIp, @Nonnull Protocol protocol, int port) throws CloudException {
+        long address = RuleIndex.toAddress(remoteIp);
+
+        if( address < 0L ) {
+            throw new CloudException("Not an IPv4 address: " + remoteIp);
+        }
+        Collection<String> ids;
+
+        synchronized( firewalls ) {
+            ids = vmMap.get(vmId);
+        }
+        if( ids == null ) {
+            return false;
+        }
+        boolean allowed = false;
+
+        for( String firewallId : ids ) {
+            FirewallRules.Snapshot snapshot = getSnapshot(firewallId);
+
+            if( snapshot == null ) {
+                continue;
+            }
+            RuleIndex index = snapshot.getIndex();
+
+            if( index.matches(direction, protocol, Permission.DENY, address, port) ) {
+                return false;
+            }
+            if( !allowed ) {
+                allowed = index.matches(direction, protocol, Permission.ALLOW, address, port);
+            }
+        }
+        return allowed;
+    }
+
     static public void saveFirewallsForVM(@Nonnull CloudProvider provider, @Nonnull String vmId, @Nonnull String ... firewallIds) throws CloudException, InternalException {
+        saveFirewallsForVMs(provider, Collections.singletonList(vmId), firewallIds);
+    }
+
+    /**
+     * Checks that every firewall exists in the context of the request, so callers can reject a request
+     * before reserving anything for it.
+     * @param provider the cloud provider handling the request
+     * @param firewallIds the firewalls to check
+     * @return true if the mock firewall support manages the firewalls, false if another implementation does
+     * @throws CloudException the cloud has no firewall support or one of the firewalls does not exist
+     * @throws InternalException an error occurred within the mock cloud
+     */
+    static public boolean validateFirewalls(@Nonnull CloudProvider provider, @Nonnull String ... firewallIds) throws CloudException, InternalException {
         NetworkServices network = provider.getNetworkServices();
 
         if( network == null ) {
@@ -105,28 +359,107 @@ public class MockFirewallSupport implements FirewallSupport {
         if( support == null ) {
             throw new CloudException("No firewall services supported in this cloud");
         }
-        if( support instanceof MockFirewallSupport ) {
-            ArrayList<String> flist= new ArrayList<String>();
+        if( !(support instanceof MockFirewallSupport) ) {
+            return false;
+        }
+        for( String id : firewallIds ) {
+            if( support.getFirewall(id) == null ) {
+                throw new CloudException("No such firewall: " + id);
+            }
+        }
+        return true;
+    }
 
-            for( String id : firewallIds ) {
-                Firewall fw = support.getFirewall(id);
+    /**
+     * Places a batch of VMs behind the same firewalls, validating the firewalls once for the whole batch.
+     * @param provider the cloud provider handling the request
+     * @param vmIds the VMs being placed behind the firewalls
+     * @param firewallIds the firewalls protecting the VMs
+     * @throws CloudException one of the firewalls does not exist
+     * @throws InternalException an error occurred within the mock cloud
+     */
+    static public void saveFirewallsForVMs(@Nonnull CloudProvider provider, @Nonnull Collection<String> vmIds, @Nonnull String ... firewallIds) throws CloudException, InternalException {
+        if( validateFirewalls(provider, firewallIds) ) {
+            ArrayList<String> flist = new ArrayList<String>(Arrays.asList(firewallIds));
 
-                if( fw == null ) {
-                    throw new CloudException("No such firewall: " + id);
-                }
-                flist.add(id);
-            }
             synchronized( firewalls ) {
-                vmMap.put(vmId, flist);
+                for( String vmId : vmIds ) {
+                    removeMember(vmId, vmMap.put(vmId, flist));
+                    effective.remove(vmId);
+                }
+                for( String firewallId : flist ) {
+                    Set<String> vms = members.get(firewallId);
+
+                    if( vms == null ) {
+                        vms = new HashSet<String>();
+                        members.put(firewallId, vms);
+                    }
+                    vms.addAll(vmIds);
+                }
             }
         }
     }
 
-    /*
-    static private @Nonnull String toRuleId(@Nonnull FirewallRule rule) {
-        return (rule.getFirewallId() + "_:_" + rule.getPermission().toString() + "_:_" + rule.getDirection().toString() + "_:_" + rule.getPermission().toString() + "_:_" + rule.getSourceEndpoint() + "_:_" + rule.getDestinationEndpoint() + "_:_" + rule.getStartPort() + ":" + rule.getEndPort());
+    /**
+     * Builds the canonical key of a rule within its firewall. Two rules with the same key have the same effect,
+     * even if they were written differently (for example, with host bits set in a CIDR or with the port range
+     * reversed), so a firewall never holds more than one rule per key.
+     * @param rule the rule to key
+     * @return the canonical key of the rule
+     */
+    static @Nonnull String toRuleKey(@Nonnull FirewallRule rule) {
+        int startPort = Math.min(rule.getStartPort(), rule.getEndPort());
+        int endPort = Math.max(rule.getStartPort(), rule.getEndPort());
+
+        return (rule.getDirection().toString() + "_:_" + rule.getPermission().toString() + "_:_" + toTargetKey(rule.getSourceEndpoint()) + "_:_" + toTargetKey(rule.getDestinationEndpoint()) + "_:_" + rule.getProtocol().toString() + "_:_" + startPort + ":" + endPort);
+    }
+
+    static private @Nonnull String toTargetKey(@Nonnull RuleTarget target) {
+        RuleTargetType type = target.getRuleTargetType();
+
+        switch( type ) {
+            case CIDR: return (type + ":" + toCanonicalCidr(target.getCidr()));
+            case GLOBAL: return (type + ":" + target.getProviderFirewallId());
+            case VM: return (type + ":" + target.getProviderVirtualMachineId());
+            case VLAN: return (type + ":" + target.getProviderVlanId());
+            default: return (type + ":" + target);
+        }
+    }
+
+    /**
+     * Puts an IPv4 CIDR into canonical form by clearing the host bits and adding an explicit /32 to bare
+     * addresses. Anything that is not an IPv4 CIDR is only trimmed and lower cased.
+     * @param cidr the CIDR to canonicalize
+     * @return the canonical form of the CIDR
+     */
+    static @Nonnull String toCanonicalCidr(@Nonnull String cidr) {
+        cidr = cidr.trim().toLowerCase();
+
+        int slash = cidr.indexOf('/');
+        String address = (slash < 0 ? cidr : cidr.substring(0, slash));
+        int bits = 32;
+
+        if( slash > -1 ) {
+            try {
+                bits = Integer.parseInt(cidr.substring(slash + 1));
+            }
+            catch( NumberFormatException e ) {
+                return cidr;
+            }
+            if( bits < 0 || bits > 32 ) {
+                return cidr;
+            }
+        }
+        long ip = RuleIndex.toAddress(address);
+
+        if( ip < 0L ) {
+            return cidr;
+        }
+        long mask = (bits == 0 ? 0L : (0xFFFFFFFFL << (32 - bits)) & 0xFFFFFFFFL);
+
+        ip &= mask;
+        return ((ip >>> 24) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF) + "/" + bits);
     }
-    */
 
     private CloudProvider provider;
 
@@ -191,16 +524,7 @@ public class MockFirewallSupport implements FirewallSupport {
 
         FirewallRule rule = FirewallRule.getInstance(null, firewallId, sourceEndpoint, direction, protocol, permission, destinationEndpoint, beginPort, endPort);
 
-        synchronized( firewalls ) {
-            Collection<FirewallRule> list = rules.get(firewallId);
-
-            if( list == null ) {
-                list = new ArrayList<FirewallRule>();
-                rules.put(firewallId, list);
-            }
-            list.add(rule);
-        }
-        return rule.getProviderRuleId();
+        return getRuleSet(firewallId).add(rule).getProviderRuleId();
     }
 
     @Override
@@ -215,35 +539,9 @@ public class MockFirewallSupport implements FirewallSupport {
         if( regionId == null ) {
             throw new CloudException("No region was specified for this request");
         }
-        Firewall fw = new Firewall();
-
-        fw.setActive(true);
-        fw.setAvailable(true);
-        fw.setDescription(description);
-        fw.setName(name);
-        fw.setProviderFirewallId(UUID.randomUUID().toString());
-        fw.setRegionId(regionId);
-        synchronized( firewalls ) {
-            Map<String,Map<String,Collection<Firewall>>> cloud = firewalls.get(ctx.getEndpoint());
-
-            if( cloud == null ) {
-                cloud = new HashMap<String, Map<String, Collection<Firewall>>>();
-                firewalls.put(ctx.getEndpoint(), cloud);
-            }
-            Map<String,Collection<Firewall>> region = cloud.get(regionId);
+        Firewall fw = newFirewall(regionId, name, description);
 
-            if( region == null ) {
-                region = new HashMap<String, Collection<Firewall>>();
-                cloud.put(regionId, region);
-            }
-            Collection<Firewall> account = region.get(ctx.getAccountNumber());
-
-            if( account == null ) {
-                account = new ArrayList<Firewall>();
-                region.put(ctx.getAccountNumber(), account);
-            }
-            account.add(fw);
-        }
+        getCatalog(ctx, regionId).put(fw.getProviderFirewallId(), fw);
         //noinspection ConstantConditions
         return copy(fw).getProviderFirewallId();
     }
@@ -266,51 +564,20 @@ public class MockFirewallSupport implements FirewallSupport {
             throw new CloudException("No region was specified for this request");
         }
         synchronized( firewalls ) {
-            ComputeServices compute = provider.getComputeServices();
-
-            if( compute != null ) {
-                VirtualMachineSupport vmSupport = compute.getVirtualMachineSupport();
-
-                if( vmSupport != null ) {
-                    for( Map.Entry<String,Collection<String>> entry : vmMap.entrySet() ) {
-                        for( String id : entry.getValue() ) {
-                            if( firewallId.equals(id) ) {
-                                VirtualMachine vm = vmSupport.getVirtualMachine(entry.getKey());
-
-                                if( vm != null && !vm.getCurrentState().equals(VmState.TERMINATED) ) {
-                                    throw new CloudException("Firewall " + firewallId + " is currently in use");
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            Map<String,Map<String,Collection<Firewall>>> cloud = firewalls.get(ctx.getEndpoint());
-
-            if( cloud == null ) {
-                cloud = new HashMap<String, Map<String, Collection<Firewall>>>();
-                firewalls.put(ctx.getEndpoint(), cloud);
+            // terminated VMs leave the index, so any remaining member is a live VM
+            if( members.containsKey(firewallId) ) {
+                throw new CloudException("Firewall " + firewallId + " is currently in use");
             }
-            Map<String,Collection<Firewall>> region = cloud.get(regionId);
+            ConcurrentHashMap<String,Firewall> catalog = firewalls.get(toCatalogKey(ctx, regionId));
 
-            if( region == null ) {
-                region = new HashMap<String, Collection<Firewall>>();
-                cloud.put(regionId, region);
-            }
-            Collection<Firewall> account = region.get(ctx.getAccountNumber());
-
-            if( account == null ) {
+            if( catalog == null || catalog.remove(firewallId) == null ) {
                 return;
             }
-            ArrayList<Firewall> replacement = new ArrayList<Firewall>();
+            FirewallRules list = rules.remove(firewallId);
 
-            for( Firewall fw : account ) {
-                if( !firewallId.equals(fw.getProviderFirewallId()) ) {
-                    replacement.add(fw);
-                }
+            if( list != null ) {
+                list.close();
             }
-            region.put(ctx.getAccountNumber(), replacement);
-            rules.remove(firewallId);
         }
     }
 
@@ -326,29 +593,9 @@ public class MockFirewallSupport implements FirewallSupport {
         if( regionId == null ) {
             throw new CloudException("No region was set for this request");
         }
-        synchronized( firewalls ) {
-            Map<String,Map<String,Collection<Firewall>>> cloud = firewalls.get(ctx.getEndpoint());
-
-            if( cloud == null ) {
-                return null;
-            }
-            Map<String,Collection<Firewall>> region = cloud.get(regionId);
+        ConcurrentHashMap<String,Firewall> catalog = firewalls.get(toCatalogKey(ctx, regionId));
 
-            if( region == null ) {
-                return null;
-            }
-            Collection<Firewall> account = region.get(ctx.getAccountNumber());
-
-            if( account == null ) {
-                return null;
-            }
-            for( Firewall fw : account ) {
-                if( firewallId.equals(fw.getProviderFirewallId()) ) {
-                    return fw;
-                }
-            }
-            return null;
-        }
+        return (catalog == null ? null : catalog.get(firewallId));
     }
 
     @Override
@@ -363,14 +610,12 @@ public class MockFirewallSupport implements FirewallSupport {
         if( fw == null ) {
             throw new CloudException("No such firewall: " + firewallId);
         }
-        synchronized( firewalls ) {
-            Collection<FirewallRule> matches = rules.get(firewallId);
+        FirewallRules matches = rules.get(firewallId);
 
-            if( matches == null ) {
-                return Collections.emptyList();
-            }
-            return Collections.unmodifiableCollection(matches);
+        if( matches == null ) {
+            return Collections.emptyList();
         }
+        return matches.getSnapshot().rules;
     }
 
     @Override
@@ -400,36 +645,19 @@ public class MockFirewallSupport implements FirewallSupport {
         if( regionId == null ) {
             throw new CloudException("No region was set for this request");
         }
-        synchronized( firewalls ) {
-            Map<String,Map<String,Collection<Firewall>>> cloud = firewalls.get(ctx.getEndpoint());
+        ConcurrentHashMap<String,Firewall> catalog = getCatalog(ctx, regionId);
 
-            if( cloud == null ) {
-                create("default", "Default Firewall");
-                cloud = firewalls.get(ctx.getEndpoint());
-                if( cloud == null ) {
-                    return Collections.emptyList();
-                }
-            }
-            Map<String,Collection<Firewall>> region = cloud.get(regionId);
+        if( catalog.isEmpty() ) {
+            // an account with no firewalls gets a default one, provisioned once even under concurrent listings
+            synchronized( catalog ) {
+                if( catalog.isEmpty() ) {
+                    Firewall fw = newFirewall(regionId, "default", "Default Firewall");
 
-            if( region == null ) {
-                create("default", "Default Firewall");
-                region = cloud.get(regionId);
-                if( region == null ) {
-                    return Collections.emptyList();
+                    catalog.put(fw.getProviderFirewallId(), fw);
                 }
             }
-            Collection<Firewall> account = region.get(ctx.getAccountNumber());
-
-            if( account == null || account.isEmpty() ) {
-                create("default", "Default Firewall");
-                account = region.get(ctx.getAccountNumber());
-                if( account == null ) {
-                    return Collections.emptyList();
-                }
-            }
-            return Collections.unmodifiableCollection(account);
         }
+        return Collections.unmodifiableCollection(catalog.values());
     }
 
     @Override
@@ -485,22 +713,10 @@ public class MockFirewallSupport implements FirewallSupport {
 
     @Override
     public void revoke(@Nonnull String providerFirewallRuleId) throws InternalException, CloudException {
-        synchronized( firewalls ) {
-            for( String fwId : rules.keySet() ) {
-                Collection<FirewallRule> list = rules.get(fwId);
+        FirewallRules list = ruleOwners.get(providerFirewallRuleId);
 
-                if( list == null ) {
-                    continue;
-                }
-                ArrayList<FirewallRule> replacement = new ArrayList<FirewallRule>();
-
-                for( FirewallRule r : list ) {
-                    if( !r.getProviderRuleId().equals(providerFirewallRuleId) ) {
-                        replacement.add(r);
-                    }
-                }
-                rules.put(fwId, replacement);
-            }
+        if( list != null ) {
+            list.remove(providerFirewallRuleId);
         }
     }
 
@@ -531,7 +747,55 @@ public class MockFirewallSupport implements FirewallSupport {
             sourceEndpoint = target;
             destinationEndpoint = RuleTarget.getCIDR(source);
         }
-        revoke(FirewallRule.getInstance(null, firewallId, sourceEndpoint, direction, protocol, permission, destinationEndpoint, beginPort, endPort).getProviderRuleId());
+        FirewallRule rule = FirewallRule.getInstance(null, firewallId, sourceEndpoint, direction, protocol, permission, destinationEndpoint, beginPort, endPort);
+
+        FirewallRules list = rules.get(firewallId);
+
+        if( list != null ) {
+            list.removeByKey(toRuleKey(rule));
+        }
+    }
+
+    /**
+     * Brings a firewall's rules in line with a complete desired rule set in a single step. The desired rules
+     * are compared with the current rules by canonical key: current rules with no desired equivalent are
+     * revoked, desired rules with no current equivalent are authorized, and everything else is left alone.
+     * Readers never see a partly applied change.
+     * @param firewallId the firewall whose rules are being replaced
+     * @param desired the complete set of rules the firewall should have; their firewall IDs are ignored
+     * @return the provider rule IDs of the rules added and removed
+     * @throws CloudException the firewall does not exist
+     * @throws InternalException an error occurred within the mock cloud
+     */
+    public @Nonnull RuleSyncResult syncRules(@Nonnull String firewallId, @Nonnull Collection<FirewallRule> desired) throws CloudException, InternalException {
+        if( getFirewall(firewallId) == null ) {
+            throw new CloudException("No such firewall: " + firewallId);
+        }
+        LinkedHashMap<String,FirewallRule> wanted = new LinkedHashMap<String, FirewallRule>();
+
+        for( FirewallRule r : desired ) {
+            FirewallRule rule = FirewallRule.getInstance(null, firewallId, r.getSourceEndpoint(), r.getDirection(), r.getProtocol(), r.getPermission(), r.getDestinationEndpoint(), r.getStartPort(), r.getEndPort());
+            String key = toRuleKey(rule);
+
+            if( !wanted.containsKey(key) ) {
+                wanted.put(key, rule);
+            }
+        }
+        ArrayList<FirewallRule> added = new ArrayList<FirewallRule>();
+        ArrayList<FirewallRule> removed = new ArrayList<FirewallRule>();
+
+        getRuleSet(firewallId).sync(wanted, added, removed);
+
+        ArrayList<String> addedIds = new ArrayList<String>();
+        ArrayList<String> removedIds = new ArrayList<String>();
+
+        for( FirewallRule rule : removed ) {
+            removedIds.add(rule.getProviderRuleId());
+        }
+        for( FirewallRule rule : added ) {
+            addedIds.add(rule.getProviderRuleId());
+        }
+        return new RuleSyncResult(addedIds, removedIds);
     }
 
     @Override
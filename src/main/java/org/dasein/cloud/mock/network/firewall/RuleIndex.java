@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.network.firewall;
+
+import org.dasein.cloud.network.Direction;
+import org.dasein.cloud.network.FirewallRule;
+import org.dasein.cloud.network.Permission;
+import org.dasein.cloud.network.Protocol;
+import org.dasein.cloud.network.RuleTarget;
+import org.dasein.cloud.network.RuleTargetType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A compiled, read-only index over a firewall's rules that answers whether traffic to or from a remote IPv4
+ * address on a given protocol and port matches any rule. Rules are split by direction, protocol, and
+ * permission, and each group is a binary trie over the bits of the remote CIDR. Each trie node stores the
+ * port ranges of the rules ending there, merged into sorted, disjoint intervals. A lookup walks at most 33
+ * nodes and binary searches the intervals at each one. Only the remote side of a rule is indexed (the source
+ * of an ingress rule, the destination of an egress rule), and rules whose remote side is not an IPv4 CIDR
+ * are left out, as are rules whose prefix length is not a number from 0 to 32. A negative start port matches
+ * every port.
+ * @version 2013.02
+ * @since 2013.02
+ */
+class RuleIndex {
+    static private final class Node {
+        private Node             zero;
+        private Node             one;
+        private ArrayList<int[]> pending;
+        private int[]            starts;
+        private int[]            ends;
+
+        private void addPorts(int startPort, int endPort) {
+            if( pending == null ) {
+                pending = new ArrayList<int[]>();
+            }
+            pending.add(new int[] { startPort, endPort });
+        }
+
+        private void compile() {
+            if( pending != null ) {
+                Collections.sort(pending, byStart);
+
+                ArrayList<int[]> merged = new ArrayList<int[]>();
+
+                for( int[] range : pending ) {
+                    int[] last = (merged.isEmpty() ? null : merged.get(merged.size() - 1));
+
+                    if( last != null && range[0] <= last[1] + 1 ) {
+                        last[1] = Math.max(last[1], range[1]);
+                    }
+                    else {
+                        merged.add(new int[] { range[0], range[1] });
+                    }
+                }
+                starts = new int[merged.size()];
+                ends = new int[merged.size()];
+                for( int i=0; i<merged.size(); i++ ) {
+                    starts[i] = merged.get(i)[0];
+                    ends[i] = merged.get(i)[1];
+                }
+                pending = null;
+            }
+            if( zero != null ) {
+                zero.compile();
+            }
+            if( one != null ) {
+                one.compile();
+            }
+        }
+
+        private boolean containsPort(int port) {
+            if( starts == null ) {
+                return false;
+            }
+            int i = Arrays.binarySearch(starts, port);
+
+            if( i < 0 ) {
+                i = -i - 2;     // the last interval starting below the port
+            }
+            return (i >= 0 && port <= ends[i]);
+        }
+    }
+
+    static private final Comparator<int[]> byStart = new Comparator<int[]>() {
+        public int compare(int[] a, int[] b) {
+            return (a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1));
+        }
+    };
+
+    static private final int ALL_PORTS_START = 0;
+    static private final int ALL_PORTS_END   = 65535;
+
+    /**
+     * Parses a dotted quad into its integer form.
+     * @param ip the dotted quad to parse
+     * @return the address as an unsigned value or -1 if the string is not a dotted quad
+     */
+    static long toAddress(@Nonnull String ip) {
+        String[] parts = ip.trim().split("\\.");
+
+        if( parts.length != 4 ) {
+            return -1L;
+        }
+        long address = 0L;
+
+        for( String part : parts ) {
+            int octet;
+
+            try {
+                octet = Integer.parseInt(part);
+            }
+            catch( NumberFormatException e ) {
+                return -1L;
+            }
+            if( octet < 0 || octet > 255 ) {
+                return -1L;
+            }
+            address = (address << 8) | octet;
+        }
+        return address;
+    }
+
+    static @Nonnull RuleIndex compile(@Nonnull Collection<FirewallRule> rules) {
+        RuleIndex index = new RuleIndex();
+
+        for( FirewallRule rule : rules ) {
+            RuleTarget remote = (rule.getDirection().equals(Direction.INGRESS) ? rule.getSourceEndpoint() : rule.getDestinationEndpoint());
+
+            if( remote == null || !RuleTargetType.CIDR.equals(remote.getRuleTargetType()) ) {
+                continue;
+            }
+            String cidr = MockFirewallSupport.toCanonicalCidr(remote.getCidr());
+            int slash = cidr.indexOf('/');
+            long address = (slash < 0 ? -1L : toAddress(cidr.substring(0, slash)));
+
+            if( address < 0L ) {
+                continue;
+            }
+            int bits;
+
+            try {
+                bits = Integer.parseInt(cidr.substring(slash + 1));
+            }
+            catch( NumberFormatException e ) {
+                continue;
+            }
+            if( bits < 0 || bits > 32 ) {
+                continue;
+            }
+            int startPort = Math.min(rule.getStartPort(), rule.getEndPort());
+            int endPort = Math.max(rule.getStartPort(), rule.getEndPort());
+
+            if( startPort < 0 ) {
+                startPort = ALL_PORTS_START;
+                endPort = ALL_PORTS_END;
+            }
+            Node node = index.getRoot(rule.getDirection(), rule.getProtocol(), rule.getPermission(), true);
+
+            for( int i=0; i<bits; i++ ) {
+                if( ((address >>> (31 - i)) & 1L) == 0L ) {
+                    if( node.zero == null ) {
+                        node.zero = new Node();
+                    }
+                    node = node.zero;
+                }
+                else {
+                    if( node.one == null ) {
+                        node.one = new Node();
+                    }
+                    node = node.one;
+                }
+            }
+            node.addPorts(startPort, endPort);
+        }
+        for( Node[][] byProtocol : index.roots ) {
+            for( Node[] byPermission : byProtocol ) {
+                for( Node root : byPermission ) {
+                    if( root != null ) {
+                        root.compile();
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private final Node[][][] roots = new Node[Direction.values().length][Protocol.values().length][Permission.values().length];
+
+    private RuleIndex() { }
+
+    private @Nullable Node getRoot(@Nonnull Direction direction, @Nonnull Protocol protocol, @Nonnull Permission permission, boolean create) {
+        Node root = roots[direction.ordinal()][protocol.ordinal()][permission.ordinal()];
+
+        if( root == null && create ) {
+            root = new Node();
+            roots[direction.ordinal()][protocol.ordinal()][permission.ordinal()] = root;
+        }
+        return root;
+    }
+
+    /**
+     * Checks whether any indexed rule with the specified permission matches the traffic described.
+     * @param direction the direction of the traffic relative to the VM
+     * @param protocol the protocol of the traffic
+     * @param permission the permission of the rules to check
+     * @param address the remote IPv4 address as an unsigned value
+     * @param port the port of the traffic
+     * @return true if at least one such rule matches
+     */
+    boolean matches(@Nonnull Direction direction, @Nonnull Protocol protocol, @Nonnull Permission permission, long address, int port) {
+        Node node = getRoot(direction, protocol, permission, false);
+
+        for( int i=0; node != null; i++ ) {
+            if( node.containsPort(port) ) {
+                return true;
+            }
+            if( i == 32 ) {
+                break;
+            }
+            node = (((address >>> (31 - i)) & 1L) == 0L ? node.zero : node.one);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.network.firewall;
+
+import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes made to a firewall by {@link MockFirewallSupport#syncRules(String, java.util.Collection)}.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public class RuleSyncResult {
+    private final List<String> addedRuleIds;
+    private final List<String> removedRuleIds;
+
+    RuleSyncResult(@Nonnull List<String> addedRuleIds, @Nonnull List<String> removedRuleIds) {
+        this.addedRuleIds = Collections.unmodifiableList(addedRuleIds);
+        this.removedRuleIds = Collections.unmodifiableList(removedRuleIds);
+    }
+
+    /**
+     * @return the provider rule IDs of the rules added to the firewall
+     */
+    public @Nonnull List<String> getAddedRuleIds() {
+        return addedRuleIds;
+    }
+
+    /**
+     * @return the provider rule IDs of the rules removed from the firewall
+     */
+    public @Nonnull List<String> getRemovedRuleIds() {
+        return removedRuleIds;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return ("+" + addedRuleIds + " -" + removedRuleIds);
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.network.ip;
+
+import org.dasein.cloud.network.IPVersion;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The public IP addresses allocated to a single account, kept separately for each IP version along with
+ * the subset that is not assigned to any resource. Addresses are held in the numeric form the pools use
+ * rather than as strings. IPv4 addresses are kept in sorted sets of numbers. IPv6 addresses are kept as
+ * bitmaps of interface IDs under each /64 prefix; since {@link IPv6AddressPool} hands out interface IDs
+ * consecutively within an account's /64, each IPv6 address costs about two bits. Listings are in numeric
+ * address order. This class is not thread safe; callers must synchronize access.
+ * @version 2013.02
+ * @since 2013.02
+ */
+class AccountAddresses {
+    /**
+     * The interface IDs allocated within a single /64, along with those not assigned to any resource.
+     */
+    static private final class InterfaceIds {
+        private final BitSet allocated  = new BitSet();
+        private final BitSet unassigned = new BitSet();
+    }
+
+    private final TreeSet<Long>              allocated4  = new TreeSet<Long>();
+    private final TreeSet<Long>              unassigned4 = new TreeSet<Long>();
+    private final TreeMap<Long,InterfaceIds> subnets6    = new TreeMap<Long, InterfaceIds>();
+
+    /**
+     * Parses an IPv4 address in the exact form {@link IPv4AddressPool} hands out. Other spellings of the same
+     * address are rejected so that they never match the string keys the rest of the mock cloud uses.
+     * @param ip the address to parse
+     * @return the address as an unsigned value or -1 if it is not such an address
+     */
+    static private long parse4(@Nonnull String ip) {
+        long address = IPv4AddressPool.parse(ip);
+
+        if( address < 0L || !IPv4AddressPool.format((int)address).equals(ip) ) {
+            return -1L;
+        }
+        return address;
+    }
+
+    /**
+     * Parses an IPv6 address in the exact form {@link IPv6AddressPool} hands out.
+     * @param ip the address to parse
+     * @return the prefix and interface ID of the address or <code>null</code> if it is not such an address
+     */
+    static private @Nullable long[] parse6(@Nonnull String ip) {
+        long[] address = IPv6AddressPool.parse(ip);
+
+        if( address == null || address[1] < 0L || address[1] > Integer.MAX_VALUE ) {
+            return null;
+        }
+        if( !IPv6AddressPool.format(address[0], address[1]).equals(ip) ) {
+            return null;
+        }
+        return address;
+    }
+
+    void add(@Nonnull String ip, @Nonnull IPVersion version) {
+        if( version.equals(IPVersion.IPV4) ) {
+            long address = parse4(ip);
+
+            if( address > -1L ) {
+                allocated4.add(address);
+                unassigned4.add(address);
+            }
+        }
+        else {
+            long[] address = parse6(ip);
+
+            if( address != null ) {
+                InterfaceIds ids = subnets6.get(address[0]);
+
+                if( ids == null ) {
+                    ids = new InterfaceIds();
+                    subnets6.put(address[0], ids);
+                }
+                ids.allocated.set((int)address[1]);
+                ids.unassigned.set((int)address[1]);
+            }
+        }
+    }
+
+    boolean contains(@Nonnull String ip) {
+        return (getVersion(ip) != null);
+    }
+
+    private @Nullable InterfaceIds getInterfaceIds(@Nullable long[] address) {
+        if( address == null ) {
+            return null;
+        }
+        InterfaceIds ids = subnets6.get(address[0]);
+
+        return (ids != null && ids.allocated.get((int)address[1]) ? ids : null);
+    }
+
+    @Nullable IPVersion getVersion(@Nonnull String ip) {
+        if( ip.indexOf(':') > -1 ) {
+            return (getInterfaceIds(parse6(ip)) == null ? null : IPVersion.IPV6);
+        }
+        return (allocated4.contains(parse4(ip)) ? IPVersion.IPV4 : null);
+    }
+
+    boolean isEmpty() {
+        return (allocated4.isEmpty() && subnets6.isEmpty());
+    }
+
+    /**
+     * Provides the addresses of the specified version in numeric address order.
+     * @param version the IP version of interest
+     * @param unassignedOnly true to list only addresses not assigned to any resource
+     * @return the matching addresses
+     */
+    @Nonnull List<String> list(@Nonnull IPVersion version, boolean unassignedOnly) {
+        ArrayList<String> ips = new ArrayList<String>();
+
+        if( version.equals(IPVersion.IPV4) ) {
+            for( Long address : (unassignedOnly ? unassigned4 : allocated4) ) {
+                ips.add(IPv4AddressPool.format((int)address.longValue()));
+            }
+        }
+        else {
+            for( Map.Entry<Long,InterfaceIds> entry : subnets6.entrySet() ) {
+                BitSet bits = (unassignedOnly ? entry.getValue().unassigned : entry.getValue().allocated);
+
+                for( int id=bits.nextSetBit(0); id>=0; id=bits.nextSetBit(id + 1) ) {
+                    ips.add(IPv6AddressPool.format(entry.getKey(), id));
+                }
+            }
+        }
+        return ips;
+    }
+
+    /**
+     * Removes an address from this account.
+     * @param ip the address to remove
+     * @return the version of the removed address or <code>null</code> if the account did not hold it
+     */
+    @Nullable IPVersion remove(@Nonnull String ip) {
+        if( ip.indexOf(':') > -1 ) {
+            long[] address = parse6(ip);
+            InterfaceIds ids = getInterfaceIds(address);
+
+            if( ids == null ) {
+                return null;
+            }
+            ids.allocated.clear((int)address[1]);
+            ids.unassigned.clear((int)address[1]);
+            if( ids.allocated.isEmpty() ) {
+                subnets6.remove(address[0]);
+            }
+            return IPVersion.IPV6;
+        }
+        long address = parse4(ip);
+
+        if( !allocated4.remove(address) ) {
+            return null;
+        }
+        unassigned4.remove(address);
+        return IPVersion.IPV4;
+    }
+
+    /**
+     * Records whether an address held by this account is assigned to a resource.
+     * @param ip the address whose assignment changed
+     * @param assigned true if the address is now assigned to a resource
+     */
+    void setAssigned(@Nonnull String ip, boolean assigned) {
+        if( ip.indexOf(':') > -1 ) {
+            long[] address = parse6(ip);
+            InterfaceIds ids = getInterfaceIds(address);
+
+            if( ids != null ) {
+                ids.unassigned.set((int)address[1], !assigned);
+            }
+        }
+        else {
+            long address = parse4(ip);
+
+            if( allocated4.contains(address) ) {
+                if( assigned ) {
+                    unassigned4.remove(address);
+                }
+                else {
+                    unassigned4.add(address);
+                }
+            }
+        }
+    }
+}
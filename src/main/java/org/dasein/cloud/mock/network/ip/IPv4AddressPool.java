@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.network.ip;
+
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Tracks the public IPv4 address space handed out by the mock cloud. Addresses are held as 32-bit integers
+ * and mapped onto a dense index over the usable space: first octets 26 through 253 minus the reserved
+ * blocks, second and third octets 0 through 253, and fourth octets 1 through 253. Fresh addresses come
+ * from a cursor over that index and released addresses go onto a FIFO free list for reuse, so allocation
+ * never probes for a free slot. A bitmap per first octet, created on first use, records which addresses
+ * are in use. This class is not thread safe; callers must synchronize access.
+ * @version 2013.02
+ * @since 2013.02
+ */
+class IPv4AddressPool {
+    static private final int   MIN_FIRST_OCTET = 26;
+    static private final int   MAX_OCTET       = 253;
+    static private final int[] RESERVED        = { 10, 25, 127, 172, 187, 192, 207 };
+
+    static private final int HOSTS_PER_SUBNET   = MAX_OCTET;                            // x.x.x.1 - x.x.x.253
+    static private final int HOSTS_PER_SLASH_16 = (MAX_OCTET + 1) * HOSTS_PER_SUBNET;   // x.x.0.1 - x.x.253.253
+    static private final int HOSTS_PER_SLASH_8  = (MAX_OCTET + 1) * HOSTS_PER_SLASH_16; // x.0.0.1 - x.253.253.253
+
+    static private final int[] firstOctets;   // position in the dense index -> first octet
+    static private final int[] slots;         // first octet -> position in the dense index, or -1
+
+    static {
+        int[] octets = new int[MAX_OCTET + 1];
+        int count = 0;
+
+        slots = new int[256];
+        Arrays.fill(slots, -1);
+        for( int octet=MIN_FIRST_OCTET; octet<=MAX_OCTET; octet++ ) {
+            if( Arrays.binarySearch(RESERVED, octet) < 0 ) {
+                slots[octet] = count;
+                octets[count++] = octet;
+            }
+        }
+        firstOctets = Arrays.copyOf(octets, count);
+    }
+
+    static final long CAPACITY = ((long)firstOctets.length) * HOSTS_PER_SLASH_8;
+
+    static private int toAddress(long index) {
+        int slot = (int)(index / HOSTS_PER_SLASH_8);
+        int offset = (int)(index % HOSTS_PER_SLASH_8);
+        int quad2 = offset / HOSTS_PER_SLASH_16;
+        int quad3 = (offset % HOSTS_PER_SLASH_16) / HOSTS_PER_SUBNET;
+        int quad4 = (offset % HOSTS_PER_SUBNET) + 1;
+
+        return ((firstOctets[slot] << 24) | (quad2 << 16) | (quad3 << 8) | quad4);
+    }
+
+    /**
+     * Parses a dotted quad into its integer form.
+     * @param ip the dotted quad to parse
+     * @return the address as an unsigned value or -1 if the string is not a dotted quad
+     */
+    static long parse(@Nonnull String ip) {
+        long address = 0L;
+        int octets = 0;
+        int value = -1;
+
+        for( int i=0; i<ip.length(); i++ ) {
+            char c = ip.charAt(i);
+
+            if( c == '.' ) {
+                if( value < 0 || octets == 3 ) {
+                    return -1L;
+                }
+                address = (address << 8) | value;
+                octets++;
+                value = -1;
+            }
+            else if( c >= '0' && c <= '9' ) {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if( value > 255 ) {
+                    return -1L;
+                }
+            }
+            else {
+                return -1L;
+            }
+        }
+        if( value < 0 || octets != 3 ) {
+            return -1L;
+        }
+        return ((address << 8) | value);
+    }
+
+    static @Nonnull String format(int address) {
+        StringBuilder str = new StringBuilder(15);
+
+        str.append(address >>> 24).append('.').append((address >>> 16) & 0xFF).append('.').append((address >>> 8) & 0xFF).append('.').append(address & 0xFF);
+        return str.toString();
+    }
+
+    private final BitSet[] used         = new BitSet[firstOctets.length];
+    private long           cursor       = 0L;
+    private int[]          free         = new int[16];
+    private int            freeHead     = 0;
+    private int            freeCount    = 0;
+    private long           allocated    = 0L;
+
+    IPv4AddressPool() { }
+
+    /**
+     * Creates a pool whose fresh addresses start partway through the address space. The addresses before
+     * the starting address are never handed out.
+     * @param first the first address to hand out
+     * @throws IllegalArgumentException the address is not part of the usable address space
+     */
+    IPv4AddressPool(@Nonnull String first) {
+        long address = parse(first);
+        int slot = (address < 0L ? -1 : slots[(int)(address >>> 24)]);
+        int quad2 = (int)((address >>> 16) & 0xFF);
+        int quad3 = (int)((address >>> 8) & 0xFF);
+        int quad4 = (int)(address & 0xFF);
+
+        if( slot < 0 || quad2 > MAX_OCTET || quad3 > MAX_OCTET || quad4 < 1 || quad4 > MAX_OCTET ) {
+            throw new IllegalArgumentException("Not a usable public address: " + first);
+        }
+        cursor = ((long)slot) * HOSTS_PER_SLASH_8 + quad2 * HOSTS_PER_SLASH_16 + quad3 * HOSTS_PER_SUBNET + (quad4 - 1);
+        allocated = cursor;
+    }
+
+    /**
+     * Allocates an address, preferring the address that has been free the longest over fresh address space.
+     * @return the allocated address
+     * @throws CloudException every address in the pool is allocated
+     */
+    @Nonnull String allocate() throws CloudException {
+        int address;
+
+        if( freeCount > 0 ) {
+            address = free[freeHead];
+            freeHead = (freeHead + 1) % free.length;
+            freeCount--;
+        }
+        else {
+            if( cursor >= CAPACITY ) {
+                throw new CloudException("IPv4 address space exhausted: all " + CAPACITY + " public addresses are allocated");
+            }
+            address = toAddress(cursor++);
+        }
+        int slot = slots[address >>> 24];
+        BitSet bits = used[slot];
+
+        if( bits == null ) {
+            bits = new BitSet();
+            used[slot] = bits;
+        }
+        bits.set(address & 0xFFFFFF);
+        allocated++;
+        return format(address);
+    }
+
+    /**
+     * Allocates a block of addresses in one pass. Either every address is allocated or, if the pool cannot
+     * supply them all, none are.
+     * @param count the number of addresses to allocate
+     * @return the allocated addresses
+     * @throws CloudException the pool has fewer than <code>count</code> free addresses
+     */
+    @Nonnull String[] allocate(int count) throws CloudException {
+        long available = CAPACITY - allocated;
+
+        if( count > available ) {
+            throw new CloudException("IPv4 address space exhausted: " + count + " public addresses were requested but only " + available + " remain");
+        }
+        String[] ips = new String[count];
+
+        for( int i=0; i<count; i++ ) {
+            ips[i] = allocate();
+        }
+        return ips;
+    }
+
+    boolean isAllocated(@Nonnull String ip) {
+        long address = parse(ip);
+
+        if( address < 0L ) {
+            return false;
+        }
+        int slot = slots[(int)(address >>> 24)];
+
+        if( slot < 0 || used[slot] == null ) {
+            return false;
+        }
+        return used[slot].get((int)(address & 0xFFFFFF));
+    }
+
+    /**
+     * Returns an address to the pool so it may be handed out again.
+     * @param ip the address to release
+     * @return true if the address had been allocated from this pool, false if it was not
+     */
+    boolean release(@Nonnull String ip) {
+        if( !isAllocated(ip) ) {
+            return false;
+        }
+        int address = (int)parse(ip);
+
+        used[slots[address >>> 24]].clear(address & 0xFFFFFF);
+        if( freeCount == free.length ) {
+            int[] grown = new int[free.length * 2];
+
+            for( int i=0; i<freeCount; i++ ) {
+                grown[i] = free[(freeHead + i) % free.length];
+            }
+            free = grown;
+            freeHead = 0;
+        }
+        free[(freeHead + freeCount) % free.length] = address;
+        freeCount++;
+        allocated--;
+        return true;
+    }
+}
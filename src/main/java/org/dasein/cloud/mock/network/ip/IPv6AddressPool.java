@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.network.ip;
+
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Tracks the public IPv6 address space handed out by the mock cloud. Each account gets its own /64 under
+ * 2001::/16 the first time it asks for an address, and addresses within that /64 get interface IDs from a
+ * counter, so an address is just two longs and allocation never has to check for collisions. The 48 bits
+ * below 2001 come from a bijective scramble of the order in which accounts were first seen, mixed with a
+ * seed, so prefixes look random but are unique and repeatable from run to run. Released interface IDs are
+ * recorded in a bitmap per prefix and are not reused. This class is not thread safe; callers must
+ * synchronize access.
+ * @version 2013.02
+ * @since 2013.02
+ */
+class IPv6AddressPool {
+    static private final long PREFIX_BASE = 0x2001L << 48;
+    static private final long PREFIX_MASK = 0xFFFFFFFFFFFFL;
+    static private final long MAX_PREFIXES = PREFIX_MASK + 1L;
+    static private final int  MAX_INTERFACE_ID = Integer.MAX_VALUE - 1;
+
+    /**
+     * Scrambles a 48-bit value. Each step is invertible modulo 2^48, so distinct inputs always produce
+     * distinct outputs.
+     * @param value the value to scramble
+     * @return the scrambled value
+     */
+    static private long scramble(long value) {
+        value &= PREFIX_MASK;
+        value = (value * 0x5DEECE66DL) & PREFIX_MASK;
+        value ^= (value >>> 24);
+        value = (value * 0x9E3779B97F4A7C15L) & PREFIX_MASK;
+        value ^= (value >>> 24);
+        return value;
+    }
+
+    static @Nonnull String format(long high, long low) {
+        StringBuilder str = new StringBuilder(39);
+
+        for( int i=3; i>=0; i-- ) {
+            str.append(Long.toHexString((high >>> (i * 16)) & 0xFFFFL)).append(':');
+        }
+        for( int i=3; i>=0; i-- ) {
+            str.append(Long.toHexString((low >>> (i * 16)) & 0xFFFFL));
+            if( i > 0 ) {
+                str.append(':');
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Parses an uncompressed IPv6 address of eight colon-separated hex groups, which is the only form this
+     * pool hands out.
+     * @param ip the address to parse
+     * @return the upper and lower 64 bits of the address or <code>null</code> if it cannot be parsed
+     */
+    static @Nullable long[] parse(@Nonnull String ip) {
+        long high = 0L, low = 0L;
+        int groups = 0, digits = 0;
+        long group = 0L;
+
+        for( int i=0; i<=ip.length(); i++ ) {
+            char c = (i < ip.length() ? ip.charAt(i) : ':');
+
+            if( c == ':' ) {
+                if( digits == 0 || groups == 8 ) {
+                    return null;
+                }
+                if( groups < 4 ) {
+                    high = (high << 16) | group;
+                }
+                else {
+                    low = (low << 16) | group;
+                }
+                groups++;
+                group = 0L;
+                digits = 0;
+            }
+            else {
+                int value = Character.digit(c, 16);
+
+                if( value < 0 || ++digits > 4 ) {
+                    return null;
+                }
+                group = (group << 4) | value;
+            }
+        }
+        if( groups != 8 ) {
+            return null;
+        }
+        return new long[] { high, low };
+    }
+
+    static private final class Subnet {
+        private final long   prefix;
+        private int          nextInterfaceId = 1;
+        private final BitSet released        = new BitSet();
+
+        private Subnet(long prefix) {
+            this.prefix = prefix;
+        }
+
+        private boolean isAllocated(long interfaceId) {
+            return (interfaceId >= 1L && interfaceId < nextInterfaceId && !released.get((int)interfaceId));
+        }
+    }
+
+    private final HashMap<String,Subnet> byAccount = new HashMap<String, Subnet>();
+    private final HashMap<Long,Subnet>   byPrefix  = new HashMap<Long, Subnet>();
+    private long                         seed;
+
+    IPv6AddressPool(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Allocates the next address in the /64 belonging to the specified account, assigning the account a
+     * /64 first if it does not yet have one.
+     * @param accountKey a key that uniquely identifies the account across endpoints and regions
+     * @return the allocated address
+     * @throws CloudException the prefix space or the account's /64 is exhausted
+     */
+    @Nonnull String allocate(@Nonnull String accountKey) throws CloudException {
+        return allocate(accountKey, 1)[0];
+    }
+
+    /**
+     * Allocates consecutive addresses from the /64 belonging to the specified account, assigning the
+     * account a /64 first if it does not yet have one. Either every address is allocated or none are.
+     * @param accountKey a key that uniquely identifies the account across endpoints and regions
+     * @param count the number of addresses to allocate
+     * @return the allocated addresses
+     * @throws CloudException the prefix space is exhausted or the account's /64 cannot supply <code>count</code> addresses
+     */
+    @Nonnull String[] allocate(@Nonnull String accountKey, int count) throws CloudException {
+        Subnet subnet = byAccount.get(accountKey);
+
+        if( subnet == null ) {
+            if( byPrefix.size() >= MAX_PREFIXES ) {
+                throw new CloudException("IPv6 address space exhausted: all " + MAX_PREFIXES + " /64 prefixes are assigned");
+            }
+            if( count > MAX_INTERFACE_ID ) {
+                throw new CloudException("IPv6 address space exhausted: " + count + " addresses were requested but a /64 holds only " + MAX_INTERFACE_ID);
+            }
+            subnet = new Subnet(PREFIX_BASE | scramble(byPrefix.size() + 1L + seed));
+            byAccount.put(accountKey, subnet);
+            byPrefix.put(subnet.prefix, subnet);
+        }
+        long available = MAX_INTERFACE_ID - subnet.nextInterfaceId + 1L;
+
+        if( count > available ) {
+            throw new CloudException("IPv6 address space exhausted: " + count + " addresses were requested but only " + available + " remain in " + format(subnet.prefix, 0L) + "/64");
+        }
+        String[] ips = new String[count];
+
+        for( int i=0; i<count; i++ ) {
+            ips[i] = format(subnet.prefix, subnet.nextInterfaceId++);
+        }
+        return ips;
+    }
+
+    boolean isAllocated(@Nonnull String ip) {
+        long[] address = parse(ip);
+
+        if( address == null ) {
+            return false;
+        }
+        Subnet subnet = byPrefix.get(address[0]);
+
+        return (subnet != null && subnet.isAllocated(address[1]));
+    }
+
+    /**
+     * Returns an address to the pool. Interface IDs are not reused, so the address will not be handed out again.
+     * @param ip the address to release
+     * @return true if the address had been allocated from this pool, false if it was not
+     */
+    boolean release(@Nonnull String ip) {
+        long[] address = parse(ip);
+
+        if( address == null ) {
+            return false;
+        }
+        Subnet subnet = byPrefix.get(address[0]);
+
+        if( subnet == null || !subnet.isAllocated(address[1]) ) {
+            return false;
+        }
+        subnet.released.set((int)address[1]);
+        return true;
+    }
+
+    /**
+     * Changes the seed from which account prefixes are derived.
+     * @param seed the new seed
+     * @throws IllegalStateException prefixes have already been assigned under the current seed
+     */
+    void setSeed(long seed) {
+        if( !byPrefix.isEmpty() ) {
+            throw new IllegalStateException("IPv6 prefixes have already been assigned");
+        }
+        this.seed = seed;
+    }
+}
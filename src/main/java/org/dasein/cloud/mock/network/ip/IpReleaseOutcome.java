@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.mock.network.ip;
+
+/**
+ * The outcome of releasing a single address in a bulk release through
+ * {@link MockIPSupport#releaseFromPool(java.util.Collection)}.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public enum IpReleaseOutcome {
+    /**
+     * The address was returned to the pool.
+     */
+    RELEASED,
+    /**
+     * The address is assigned to a resource and must be released from it first.
+     */
+    ASSIGNED,
+    /**
+     * The address is allocated to a different account.
+     */
+    NOT_OWNER,
+    /**
+     * The address is not allocated to anyone.
+     */
+    NOT_ALLOCATED
+}
@@ -36,16 +36,18 @@ import org.dasein.cloud.network.IpAddressSupport;
 import org.dasein.cloud.network.IpForwardingRule;
 import org.dasein.cloud.network.Protocol;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
-import java.util.TreeSet;
 
 /**
  * Mock support for public IP address management in the cloud, including IPv4 and IPv6 support.
@@ -55,145 +57,123 @@ import java.util.TreeSet;
  * @since 2012.09
  */
 public class MockIPSupport implements IpAddressSupport {
-    static private final TreeSet<String>                                            allocatedIps  = new TreeSet<String>();
-    static private final HashMap<String,Map<String,Map<String,Collection<String>>>> allocations   = new HashMap<String, Map<String, Map<String,Collection<String>>>>();
+    // keyed by endpoint, region, and account; accounts holding no addresses have no entry
+    static private final HashMap<String,AccountAddresses>                           accounts      = new HashMap<String, AccountAddresses>();
     static private final HashMap<String,String>                                     vmAssignments = new HashMap<String, String>();
     static private final HashMap<String,String>                                     lbAssignments = new HashMap<String, String>();
+    // reverse views of vmAssignments and lbAssignments, always updated alongside them
+    static private final HashMap<String,String>                                     vmAddresses   = new HashMap<String, String>();
+    static private final HashMap<String,String>                                     lbAddresses   = new HashMap<String, String>();
+
+    static private final IPv4AddressPool                                            ipv4Pool      = new IPv4AddressPool();
+    static private final IPv6AddressPool                                            ipv6Pool      = new IPv6AddressPool(0L);
+
+    /**
+     * Sets the seed from which per-account IPv6 prefixes are derived. The same seed always yields the same
+     * prefixes for accounts that request IPv6 addresses in the same order.
+     * @param seed the seed for IPv6 prefix generation
+     * @throws IllegalStateException IPv6 addresses have already been allocated
+     */
+    static public void setIPv6Seed(long seed) {
+        synchronized( accounts ) {
+            ipv6Pool.setSeed(seed);
+        }
+    }
 
-    static private int quad1 = 26;
-    static private int quad2 = 0;
-    static private int quad3 = 0;
-    static private int quad4 = 0;
-
-    static private final Random random = new Random();
-
-    static private @Nonnull String allocate(@Nonnull ProviderContext ctx, IPVersion version) throws CloudException {
-        synchronized( allocatedIps ) {
-            String ip;
-
-            do {
-                if( version.equals(IPVersion.IPV4) ) {
-                    quad4++;
-                    if( quad4 > 253 ) {
-                        quad3++;
-                        if( quad3 > 253 ) {
-                            quad2++;
-                            if( quad2 > 253 ) {
-                                quad1++;
-                                if( quad1 == 10 || quad1 == 25 || quad1 == 127 || quad1 == 172 || quad1 == 187 || quad1 == 192 || quad1 == 207 ) {
-                                    quad1++;
-                                }
-                                if( quad1 > 253 ) {
-                                    throw new CloudException("IPv4 address space exhausted");
-                                }
-                            }
-                        }
-                    }
-                    ip = (quad1 + "." + quad2 + "." + quad3 + "." + quad4);
-                }
-                else {
-                    StringBuilder str = new StringBuilder();
-
-                    str.append("2001");
+    static private @Nonnull String toAccountKey(@Nonnull ProviderContext ctx) {
+        return (ctx.getEndpoint() + "|" + ctx.getRegionId() + "|" + ctx.getEffectiveAccountNumber());
+    }
 
-                    for( int i=0; i<7; i++ ) {
-                        str.append(":");
-                        str.append(Integer.toHexString(random.nextInt(65534)));
-                    }
-                    ip = str.toString();
-                }
-            } while( allocatedIps.contains(ip) );
-            allocatedIps.add(ip);
+    static private @Nonnull List<String> allocate(@Nonnull ProviderContext ctx, @Nonnull IPVersion version, int count) throws CloudException {
+        if( count < 1 ) {
+            throw new CloudException("At least one IP address must be requested, not " + count);
+        }
+        String key = toAccountKey(ctx);
 
-            Map<String,Map<String,Collection<String>>> cloud = allocations.get(ctx.getEndpoint());
+        synchronized( accounts ) {
+            String[] ips;
 
-            if( cloud == null ) {
-                cloud = new HashMap<String, Map<String, Collection<String>>>();
-                allocations.put(ctx.getEndpoint(), cloud);
+            if( version.equals(IPVersion.IPV4) ) {
+                ips = ipv4Pool.allocate(count);
             }
-            Map<String,Collection<String>> region = cloud.get(ctx.getRegionId());
-
-            if( region == null ) {
-                region = new HashMap<String, Collection<String>>();
-                cloud.put(ctx.getRegionId(), region);
+            else {
+                ips = ipv6Pool.allocate(key, count);
             }
-            Collection<String> account = region.get(ctx.getEffectiveAccountNumber());
+            AccountAddresses account = accounts.get(key);
 
             if( account == null ) {
-                account = new TreeSet<String>();
-                region.put(ctx.getEffectiveAccountNumber(), account);
+                account = new AccountAddresses();
+                accounts.put(key, account);
             }
-            account.add(ip);
-            return ip;
+            for( String ip : ips ) {
+                account.add(ip, version);
+            }
+            return Arrays.asList(ips);
         }
     }
 
-    static public void assignToVM(@Nonnull ProviderContext ctx, @Nonnull String ipAddress, @Nonnull VirtualMachine vm) throws CloudException {
-        synchronized( allocatedIps ) {
-            Map<String,Map<String,Collection<String>>> cloud = allocations.get(ctx.getEndpoint());
+    /**
+     * Releases an address back to its pool. Callers must hold the allocation lock.
+     * @param account the addresses of the account releasing the address, if it has any
+     * @param ip the address to release
+     * @return the outcome of the release
+     */
+    static private @Nonnull IpReleaseOutcome release(@Nullable AccountAddresses account, @Nonnull String ip) {
+        if( vmAssignments.containsKey(ip) || lbAssignments.containsKey(ip) ) {
+            return IpReleaseOutcome.ASSIGNED;
+        }
+        IPVersion version = (account == null ? null : account.remove(ip));
 
-            if( cloud == null ) {
-                cloud = new HashMap<String, Map<String, Collection<String>>>();
-                allocations.put(ctx.getEndpoint(), cloud);
-            }
-            Map<String,Collection<String>> region = cloud.get(ctx.getRegionId());
+        if( version == null ) {
+            return (ipv4Pool.isAllocated(ip) || ipv6Pool.isAllocated(ip) ? IpReleaseOutcome.NOT_OWNER : IpReleaseOutcome.NOT_ALLOCATED);
+        }
+        if( version.equals(IPVersion.IPV4) ) {
+            ipv4Pool.release(ip);
+        }
+        else {
+            ipv6Pool.release(ip);
+        }
+        return IpReleaseOutcome.RELEASED;
+    }
 
-            if( region == null ) {
-                region = new HashMap<String, Collection<String>>();
-                cloud.put(ctx.getRegionId(), region);
-            }
-            Collection<String> account = region.get(ctx.getEffectiveAccountNumber());
+    static public void assignToVM(@Nonnull ProviderContext ctx, @Nonnull String ipAddress, @Nonnull VirtualMachine vm) throws CloudException {
+        synchronized( accounts ) {
+            AccountAddresses account = accounts.get(toAccountKey(ctx));
 
-            if( account == null ) {
-                account = new TreeSet<String>();
-                region.put(ctx.getEffectiveAccountNumber(), account);
-            }
-            if( !account.contains(ipAddress) ) {
+            if( account == null || !account.contains(ipAddress) ) {
                 throw new CloudException("That IP address is not allocated to you");
             }
 
-            String current = null;
-
-            for( Map.Entry<String,String> entry : vmAssignments.entrySet() ) {
-                if( entry.getKey().equals(ipAddress) ) {
-                    throw new CloudException("IP address is already assigned");
-                }
-                if( entry.getValue().equals(vm.getProviderVirtualMachineId()) ) {
-                    current = entry.getKey();
-                }
+            if( vmAssignments.containsKey(ipAddress) ) {
+                throw new CloudException("IP address is already assigned");
             }
+            String current = vmAddresses.get(vm.getProviderVirtualMachineId());
+
             if( current == null ) {
                 if( lbAssignments.containsKey(ipAddress) ) {
                     throw new CloudException("IP address is already assigned");
                 }
             }
             vmAssignments.put(ipAddress, vm.getProviderVirtualMachineId());
+            vmAddresses.put(vm.getProviderVirtualMachineId(), ipAddress);
+            account.setAssigned(ipAddress, true);
             if( current != null ) {
                 vmAssignments.remove(current);
+                account.setAssigned(current, false);
             }
         }
     }
 
     static public @Nullable String getIPAddressForVM(@Nonnull String vmId) {
-        synchronized( allocatedIps ) {
-            for( Map.Entry<String,String> entry : vmAssignments.entrySet() ) {
-                if( entry.getValue().equals(vmId) ) {
-                    return entry.getKey();
-                }
-            }
+        synchronized( accounts ) {
+            return vmAddresses.get(vmId);
         }
-        return null;
     }
 
     static public @Nullable String getIPAddressForLB(@Nonnull String lbId) {
-        synchronized( allocatedIps ) {
-            for( Map.Entry<String,String> entry : lbAssignments.entrySet() ) {
-                if( entry.getValue().equals(lbId) ) {
-                    return entry.getKey();
-                }
-            }
+        synchronized( accounts ) {
+            return lbAddresses.get(lbId);
         }
-        return null;
     }
 
     private CloudProvider provider;
@@ -237,17 +217,24 @@ public class MockIPSupport implements IpAddressSupport {
 
     @Override
     public IpAddress getIpAddress(@Nonnull String addressId) throws InternalException, CloudException {
-        for( IpAddress addr  : listIpPool(IPVersion.IPV4, false) ) {
-            if( addr.getProviderIpAddressId().equals(addressId) ) {
-                return addr;
-            }
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
         }
-        for( IpAddress addr  : listIpPool(IPVersion.IPV6, false) ) {
-            if( addr.getProviderIpAddressId().equals(addressId) ) {
-                return addr;
+        synchronized( accounts ) {
+            AccountAddresses account = accounts.get(toAccountKey(ctx));
+
+            if( account == null ) {
+                return null;
             }
+            IPVersion version = account.getVersion(addressId);
+
+            if( version == null ) {
+                return null;
+            }
+            return toIpAddress(ctx, addressId, version);
         }
-        return null;
     }
 
     @Override
@@ -319,47 +306,14 @@ public class MockIPSupport implements IpAddressSupport {
         if( ctx == null ) {
             throw new CloudException("No context was set for this request");
         }
-        synchronized( allocatedIps ) {
-            Map<String,Map<String,Collection<String>>> cloud = allocations.get(ctx.getEndpoint());
-
-            if( cloud == null ) {
-                cloud = new HashMap<String, Map<String, Collection<String>>>();
-                allocations.put(ctx.getEndpoint(), cloud);
-            }
-            Map<String,Collection<String>> region = cloud.get(ctx.getRegionId());
-
-            if( region == null ) {
-                region = new HashMap<String, Collection<String>>();
-                cloud.put(ctx.getRegionId(), region);
-            }
-            Collection<String> account = region.get(ctx.getEffectiveAccountNumber());
+        synchronized( accounts ) {
+            AccountAddresses account = accounts.get(toAccountKey(ctx));
 
             if( account == null ) {
-                account = new TreeSet<String>();
-                region.put(ctx.getEffectiveAccountNumber(), account);
+                return addresses;
             }
-            for( String ip : account ) {
-                boolean v4 = (ip.split("\\.").length == 4);
-
-                if( v4 != version.equals(IPVersion.IPV4) ) {
-                    continue;
-                }
-                if( unassignedOnly && (vmAssignments.containsKey(ip) || lbAssignments.containsKey(ip)) ) {
-                    continue;
-                }
-                IpAddress address = new IpAddress();
-
-                address.setAddress(ip);
-                address.setAddressType(AddressType.PUBLIC);
-                address.setForVlan(false);
-                address.setIpAddressId(ip);
-                address.setProviderLoadBalancerId(lbAssignments.get(ip));
-                address.setProviderNetworkInterfaceId(null);
-                //noinspection ConstantConditions
-                address.setRegionId(ctx.getRegionId());
-                address.setServerId(vmAssignments.get(ip));
-                address.setVersion(version);
-                addresses.add(address);
+            for( String ip : account.list(version, unassignedOnly) ) {
+                addresses.add(toIpAddress(ctx, ip, version));
             }
         }
         return addresses;
@@ -396,31 +350,50 @@ public class MockIPSupport implements IpAddressSupport {
         if( ctx == null ) {
             throw new CloudException("No context was set for this request");
         }
-        synchronized( allocatedIps ) {
-            if( vmAssignments.containsKey(ip) || lbAssignments.containsKey(ip) ) {
+        String key = toAccountKey(ctx);
+
+        synchronized( accounts ) {
+            AccountAddresses account = accounts.get(key);
+
+            if( release(account, ip).equals(IpReleaseOutcome.ASSIGNED) ) {
                 throw new CloudException("That IP is currently assigned to a resource");
             }
-            Map<String,Map<String,Collection<String>>> cloud = allocations.get(ctx.getEndpoint());
-
-            if( cloud == null ) {
-                cloud = new HashMap<String, Map<String, Collection<String>>>();
-                allocations.put(ctx.getEndpoint(), cloud);
+            if( account != null && account.isEmpty() ) {
+                accounts.remove(key);
             }
-            Map<String,Collection<String>> region = cloud.get(ctx.getRegionId());
+        }
+    }
 
-            if( region == null ) {
-                region = new HashMap<String, Collection<String>>();
-                cloud.put(ctx.getRegionId(), region);
-            }
-            Collection<String> account = region.get(ctx.getEffectiveAccountNumber());
+    /**
+     * Releases a batch of addresses back to their pools in a single pass. Each address is released or
+     * rejected on its own, so one bad address does not stop the rest of the batch from being released.
+     * An address listed more than once is released once.
+     * @param ips the addresses to release
+     * @return the outcome for each distinct address, in the order the addresses were first given
+     * @throws CloudException no context was set for this request
+     */
+    public @Nonnull Map<String,IpReleaseOutcome> releaseFromPool(@Nonnull Collection<String> ips) throws CloudException {
+        ProviderContext ctx = provider.getContext();
 
-            if( account == null ) {
-                account = new TreeSet<String>();
-                region.put(ctx.getEffectiveAccountNumber(), account);
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        LinkedHashMap<String,IpReleaseOutcome> outcomes = new LinkedHashMap<String, IpReleaseOutcome>();
+        String key = toAccountKey(ctx);
+
+        synchronized( accounts ) {
+            AccountAddresses account = accounts.get(key);
+
+            for( String ip : ips ) {
+                if( !outcomes.containsKey(ip) ) {
+                    outcomes.put(ip, release(account, ip));
+                }
+            }
+            if( account != null && account.isEmpty() ) {
+                accounts.remove(key);
             }
-            account.remove(ip);
-            allocatedIps.remove(ip);
         }
+        return outcomes;
     }
 
     @Override
@@ -430,32 +403,17 @@ public class MockIPSupport implements IpAddressSupport {
         if( ctx == null ) {
             throw new CloudException("No context was set for this request");
         }
-        synchronized( allocatedIps ) {
+        synchronized( accounts ) {
             if( !vmAssignments.containsKey(ip) ) {
                 throw new CloudException("That IP is not currently assigned to a resource");
             }
-            Map<String,Map<String,Collection<String>>> cloud = allocations.get(ctx.getEndpoint());
-
-            if( cloud == null ) {
-                cloud = new HashMap<String, Map<String, Collection<String>>>();
-                allocations.put(ctx.getEndpoint(), cloud);
-            }
-            Map<String,Collection<String>> region = cloud.get(ctx.getRegionId());
-
-            if( region == null ) {
-                region = new HashMap<String, Collection<String>>();
-                cloud.put(ctx.getRegionId(), region);
-            }
-            Collection<String> account = region.get(ctx.getEffectiveAccountNumber());
+            AccountAddresses account = accounts.get(toAccountKey(ctx));
 
-            if( account == null ) {
-                account = new TreeSet<String>();
-                region.put(ctx.getEffectiveAccountNumber(), account);
-            }
-            if( !account.contains(ip) ) {
+            if( account == null || !account.contains(ip) ) {
                 throw new CloudException("Not your IP address");
             }
-            vmAssignments.remove(ip);
+            vmAddresses.remove(vmAssignments.remove(ip));
+            account.setAssigned(ip, false);
         }
     }
 
@@ -474,7 +432,24 @@ public class MockIPSupport implements IpAddressSupport {
         if( ctx == null ) {
             throw new CloudException("No context was set for this request");
         }
-        return allocate(ctx, version);
+        return allocate(ctx, version, 1).get(0);
+    }
+
+    /**
+     * Requests a batch of addresses in a single pass. Either every address is allocated or, if the cloud
+     * cannot supply them all, none are.
+     * @param version the IP version of the addresses to request
+     * @param count the number of addresses to request
+     * @return the allocated addresses
+     * @throws CloudException no context was set for this request or the address space cannot supply <code>count</code> addresses
+     */
+    public @Nonnull List<String> request(@Nonnull IPVersion version, @Nonnegative int count) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return allocate(ctx, version, count);
     }
 
     @Override
@@ -501,4 +476,27 @@ public class MockIPSupport implements IpAddressSupport {
     public @Nonnull String[] mapServiceAction(@Nonnull ServiceAction action) {
         return new String[0];
     }
+
+    /**
+     * Builds the address view of an allocated address. Callers must hold the allocation lock.
+     * @param ctx the context of the account holding the address
+     * @param ip the allocated address
+     * @param version the IP version of the address
+     * @return the address view
+     */
+    static private @Nonnull IpAddress toIpAddress(@Nonnull ProviderContext ctx, @Nonnull String ip, @Nonnull IPVersion version) {
+        IpAddress address = new IpAddress();
+
+        address.setAddress(ip);
+        address.setAddressType(AddressType.PUBLIC);
+        address.setForVlan(false);
+        address.setIpAddressId(ip);
+        address.setProviderLoadBalancerId(lbAssignments.get(ip));
+        address.setProviderNetworkInterfaceId(null);
+        //noinspection ConstantConditions
+        address.setRegionId(ctx.getRegionId());
+        address.setServerId(vmAssignments.get(ip));
+        address.setVersion(version);
+        return address;
+    }
 }
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.compute.vm;
+
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.mock.ControlledClock;
+import org.dasein.cloud.mock.MockClock;
+import org.dasein.util.CalendarWrapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Verifies that advancing a {@link ControlledClock} applies every VM transition that comes due before the
+ * advance returns.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public class MockVMSchedulerTest {
+    private ControlledClock clock;
+    private MockVMStore     store;
+    private MockVMScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        clock = new ControlledClock(0L);
+        MockClock.setInstance(clock);
+        store = new MockVMStore();
+        scheduler = new MockVMScheduler(store);
+        scheduler.setLatency(VmState.PENDING, TransitionLatency.fixed(CalendarWrapper.MINUTE));
+        scheduler.setLatency(VmState.STOPPING, TransitionLatency.fixed(CalendarWrapper.MINUTE));
+        scheduler.setLatency(VmState.RUNNING, TransitionLatency.never());
+    }
+
+    @After
+    public void tearDown() {
+        MockClock.setInstance(null);
+    }
+
+    private @Nonnull MockVM launch(@Nonnull String vmId) {
+        MockVM vm = new MockVM();
+
+        vm.vmId = vmId;
+        vm.endpoint = "endpoint";
+        vm.regionId = "region";
+        vm.owner = "owner";
+        store.add(vm);
+        scheduler.schedule(vm);
+        return vm;
+    }
+
+    @Test
+    public void pendingBecomesRunningWhenDue() {
+        MockVM vm = launch("vm-1");
+
+        clock.advance(CalendarWrapper.MINUTE - 1L);
+        assertEquals(VmState.PENDING, vm.getCurrentState());
+        clock.advance(1L);
+        assertEquals(VmState.RUNNING, vm.getCurrentState());
+    }
+
+    @Test
+    public void appliesFollowOnTransitionsInOneAdvance() {
+        MockVM vm = launch("vm-1");
+
+        clock.advance(CalendarWrapper.MINUTE);
+        scheduler.transition(vm, VmState.RUNNING, VmState.STOPPING);
+        clock.advance(CalendarWrapper.HOUR);
+        assertEquals(VmState.STOPPED, vm.getCurrentState());
+    }
+
+    @Test
+    public void appliesEveryDueTransitionBeforeAdvanceReturns() {
+        for( int round=0; round<200; round++ ) {
+            MockVM vm = launch("vm-" + round);
+
+            // wakes the worker, which races the advancing thread for the transition
+            clock.advance(CalendarWrapper.MINUTE);
+            assertEquals(VmState.RUNNING, vm.getCurrentState());
+        }
+    }
+
+    @Test
+    public void terminatedVMIsPurgedAfterRetention() {
+        MockVM vm = launch("vm-1");
+
+        clock.advance(CalendarWrapper.MINUTE);
+        vm.lastTouched = clock.currentTimeMillis();
+        scheduler.transition(vm, VmState.RUNNING, VmState.TERMINATED);
+        clock.advance(MockVMScheduler.TERMINATED_RETENTION - 1L);
+        assertSame(vm, store.get("vm-1"));
+        clock.advance(1L);
+        assertNull(store.get("vm-1"));
+    }
+
+    @Test
+    public void stateChangeReplacesPendingTransition() {
+        MockVM vm = launch("vm-1");
+
+        clock.advance(CalendarWrapper.MINUTE);
+        scheduler.transition(vm, VmState.RUNNING, VmState.STOPPING);
+        scheduler.transition(vm, VmState.STOPPING, VmState.RUNNING);
+        clock.advance(CalendarWrapper.HOUR);
+        assertEquals(VmState.RUNNING, vm.getCurrentState());
+    }
+}
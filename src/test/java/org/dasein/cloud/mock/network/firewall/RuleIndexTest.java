@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.network.firewall;
+
+import org.dasein.cloud.network.Direction;
+import org.dasein.cloud.network.FirewallRule;
+import org.dasein.cloud.network.Permission;
+import org.dasein.cloud.network.Protocol;
+import org.dasein.cloud.network.RuleTarget;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies trie and port interval matching in {@link RuleIndex}, including rules the index must skip.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public class RuleIndexTest {
+    static private @Nonnull FirewallRule ingress(@Nonnull String cidr, @Nonnull Protocol protocol, @Nonnull Permission permission, int startPort, int endPort) {
+        return FirewallRule.getInstance(null, "fw-1", RuleTarget.getCIDR(cidr), Direction.INGRESS, protocol, permission, RuleTarget.getGlobal("fw-1"), startPort, endPort);
+    }
+
+    static private boolean allows(@Nonnull RuleIndex index, @Nonnull String ip, int port) {
+        return index.matches(Direction.INGRESS, Protocol.TCP, Permission.ALLOW, RuleIndex.toAddress(ip), port);
+    }
+
+    @Test
+    public void matchesAddressesInsidePrefix() {
+        RuleIndex index = RuleIndex.compile(Arrays.asList(ingress("10.1.0.0/16", Protocol.TCP, Permission.ALLOW, 22, 22)));
+
+        assertTrue(allows(index, "10.1.0.0", 22));
+        assertTrue(allows(index, "10.1.255.255", 22));
+        assertFalse(allows(index, "10.2.0.0", 22));
+        assertFalse(allows(index, "10.0.255.255", 22));
+    }
+
+    @Test
+    public void matchesZeroAndFullLengthPrefixes() {
+        RuleIndex index = RuleIndex.compile(Arrays.asList(
+                ingress("0.0.0.0/0", Protocol.TCP, Permission.ALLOW, 80, 80),
+                ingress("192.168.1.7", Protocol.TCP, Permission.ALLOW, 443, 443)));
+
+        assertTrue(allows(index, "8.8.8.8", 80));
+        assertTrue(allows(index, "255.255.255.255", 80));
+        assertTrue(allows(index, "192.168.1.7", 443));
+        assertFalse(allows(index, "192.168.1.6", 443));
+        assertFalse(allows(index, "192.168.1.8", 443));
+    }
+
+    @Test
+    public void mergesOverlappingAndAdjacentPortRanges() {
+        RuleIndex index = RuleIndex.compile(Arrays.asList(
+                ingress("10.0.0.0/8", Protocol.TCP, Permission.ALLOW, 1000, 2000),
+                ingress("10.0.0.0/8", Protocol.TCP, Permission.ALLOW, 1500, 2500),
+                ingress("10.0.0.0/8", Protocol.TCP, Permission.ALLOW, 2501, 3000),
+                ingress("10.0.0.0/8", Protocol.TCP, Permission.ALLOW, 5000, 4000)));
+
+        assertFalse(allows(index, "10.0.0.1", 999));
+        assertTrue(allows(index, "10.0.0.1", 1000));
+        assertTrue(allows(index, "10.0.0.1", 2500));
+        assertTrue(allows(index, "10.0.0.1", 2501));
+        assertTrue(allows(index, "10.0.0.1", 3000));
+        assertFalse(allows(index, "10.0.0.1", 3001));
+        assertTrue(allows(index, "10.0.0.1", 4000));
+        assertTrue(allows(index, "10.0.0.1", 5000));
+        assertFalse(allows(index, "10.0.0.1", 5001));
+    }
+
+    @Test
+    public void negativeStartPortMatchesEveryPort() {
+        RuleIndex index = RuleIndex.compile(Arrays.asList(ingress("10.0.0.0/8", Protocol.TCP, Permission.ALLOW, -1, -1)));
+
+        assertTrue(allows(index, "10.0.0.1", 0));
+        assertTrue(allows(index, "10.0.0.1", 65535));
+    }
+
+    @Test
+    public void separatesProtocolsPermissionsAndDirections() {
+        RuleIndex index = RuleIndex.compile(Arrays.asList(
+                ingress("10.0.0.0/8", Protocol.UDP, Permission.ALLOW, 53, 53),
+                ingress("10.0.0.0/8", Protocol.TCP, Permission.DENY, 53, 53)));
+        long address = RuleIndex.toAddress("10.0.0.1");
+
+        assertFalse(allows(index, "10.0.0.1", 53));
+        assertTrue(index.matches(Direction.INGRESS, Protocol.UDP, Permission.ALLOW, address, 53));
+        assertTrue(index.matches(Direction.INGRESS, Protocol.TCP, Permission.DENY, address, 53));
+        assertFalse(index.matches(Direction.EGRESS, Protocol.UDP, Permission.ALLOW, address, 53));
+    }
+
+    @Test
+    public void skipsRulesWithInvalidPrefixLength() {
+        ArrayList<FirewallRule> rules = new ArrayList<FirewallRule>();
+
+        rules.add(ingress("10.0.0.0/abc", Protocol.TCP, Permission.ALLOW, 22, 22));
+        rules.add(ingress("10.0.0.0/40", Protocol.TCP, Permission.ALLOW, 22, 22));
+        rules.add(ingress("10.0.0.0/-1", Protocol.TCP, Permission.ALLOW, 22, 22));
+        rules.add(ingress("10.0.0.0/", Protocol.TCP, Permission.ALLOW, 22, 22));
+        rules.add(ingress("172.16.0.0/12", Protocol.TCP, Permission.ALLOW, 22, 22));
+
+        RuleIndex index = RuleIndex.compile(rules);
+
+        assertFalse(allows(index, "10.0.0.0", 22));
+        assertTrue(allows(index, "172.16.0.1", 22));
+    }
+
+    @Test
+    public void canonicalizesCidrsWithTheIndexAddressParser() {
+        assertEquals("10.0.0.0/8", MockFirewallSupport.toCanonicalCidr(" 10.1.2.3/8 "));
+        assertEquals("192.168.1.7/32", MockFirewallSupport.toCanonicalCidr("192.168.1.7"));
+        assertEquals("0.0.0.0/0", MockFirewallSupport.toCanonicalCidr("8.8.8.8/0"));
+        assertEquals("10.0.0.256/8", MockFirewallSupport.toCanonicalCidr("10.0.0.256/8"));
+        assertEquals("10.0.0.0/40", MockFirewallSupport.toCanonicalCidr("10.0.0.0/40"));
+    }
+
+    @Test
+    public void rejectsMalformedAddresses() {
+        assertTrue(RuleIndex.toAddress("10.0.0.1") == 0x0A000001L);
+        assertTrue(RuleIndex.toAddress("10.0.0") < 0L);
+        assertTrue(RuleIndex.toAddress("10.0.0.256") < 0L);
+        assertTrue(RuleIndex.toAddress("a.b.c.d") < 0L);
+    }
+}
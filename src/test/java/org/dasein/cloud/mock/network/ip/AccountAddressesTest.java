@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.network.ip;
+
+import org.dasein.cloud.network.IPVersion;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the per-account address bookkeeping in {@link AccountAddresses}.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public class AccountAddressesTest {
+    @Test
+    public void listsAddressesInNumericOrder() {
+        AccountAddresses account = new AccountAddresses();
+
+        account.add("26.0.0.10", IPVersion.IPV4);
+        account.add("26.0.0.9", IPVersion.IPV4);
+        account.add("2001:1:2:3:0:0:0:a", IPVersion.IPV6);
+        account.add("2001:1:2:3:0:0:0:9", IPVersion.IPV6);
+        assertEquals(Arrays.asList("26.0.0.9", "26.0.0.10"), account.list(IPVersion.IPV4, false));
+        assertEquals(Arrays.asList("2001:1:2:3:0:0:0:9", "2001:1:2:3:0:0:0:a"), account.list(IPVersion.IPV6, false));
+    }
+
+    @Test
+    public void tracksAssignmentPerVersion() {
+        AccountAddresses account = new AccountAddresses();
+
+        account.add("26.0.0.1", IPVersion.IPV4);
+        account.add("2001:1:2:3:0:0:0:1", IPVersion.IPV6);
+        account.setAssigned("26.0.0.1", true);
+        account.setAssigned("2001:1:2:3:0:0:0:1", true);
+        assertTrue(account.list(IPVersion.IPV4, true).isEmpty());
+        assertTrue(account.list(IPVersion.IPV6, true).isEmpty());
+        account.setAssigned("2001:1:2:3:0:0:0:1", false);
+        assertEquals(Arrays.asList("2001:1:2:3:0:0:0:1"), account.list(IPVersion.IPV6, true));
+        assertEquals(IPVersion.IPV4, account.getVersion("26.0.0.1"));
+        assertEquals(IPVersion.IPV6, account.getVersion("2001:1:2:3:0:0:0:1"));
+    }
+
+    @Test
+    public void removesAddressesAndEmpties() {
+        AccountAddresses account = new AccountAddresses();
+
+        account.add("26.0.0.1", IPVersion.IPV4);
+        account.add("2001:1:2:3:0:0:0:1", IPVersion.IPV6);
+        assertEquals(IPVersion.IPV6, account.remove("2001:1:2:3:0:0:0:1"));
+        assertNull(account.remove("2001:1:2:3:0:0:0:1"));
+        assertFalse(account.isEmpty());
+        assertEquals(IPVersion.IPV4, account.remove("26.0.0.1"));
+        assertTrue(account.isEmpty());
+    }
+
+    @Test
+    public void matchesOnlyTheExactSpellingOfAnAddress() {
+        AccountAddresses account = new AccountAddresses();
+
+        account.add("26.0.0.1", IPVersion.IPV4);
+        account.add("2001:1:2:3:0:0:0:1", IPVersion.IPV6);
+        assertFalse(account.contains("026.0.0.1"));
+        assertFalse(account.contains("2001:0001:2:3:0:0:0:1"));
+        assertFalse(account.contains("2001:1:2:3::1"));
+        assertFalse(account.contains("bogus"));
+        assertNull(account.remove("026.0.0.1"));
+    }
+}
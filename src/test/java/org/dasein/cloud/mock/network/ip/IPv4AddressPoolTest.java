@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.network.ip;
+
+import org.dasein.cloud.CloudException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies how {@link IPv4AddressPool} walks the usable address space, reuses released addresses, and
+ * reports exhaustion.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public class IPv4AddressPoolTest {
+    @Test
+    public void startsAtFirstUsableAddress() throws CloudException {
+        IPv4AddressPool pool = new IPv4AddressPool();
+
+        assertEquals("26.0.0.1", pool.allocate());
+        assertEquals("26.0.0.2", pool.allocate());
+        assertTrue(pool.isAllocated("26.0.0.1"));
+        assertFalse(pool.isAllocated("26.0.0.3"));
+    }
+
+    @Test
+    public void skipsNetworkAndBroadcastOctets() throws CloudException {
+        IPv4AddressPool pool = new IPv4AddressPool("26.0.0.253");
+
+        assertEquals("26.0.0.253", pool.allocate());
+        assertEquals("26.0.1.1", pool.allocate());
+
+        pool = new IPv4AddressPool("26.0.253.253");
+        assertEquals("26.0.253.253", pool.allocate());
+        assertEquals("26.1.0.1", pool.allocate());
+    }
+
+    @Test
+    public void skipsReservedFirstOctets() throws CloudException {
+        IPv4AddressPool pool = new IPv4AddressPool("126.253.253.253");
+
+        assertEquals("126.253.253.253", pool.allocate());
+        assertEquals("128.0.0.1", pool.allocate());
+
+        pool = new IPv4AddressPool("191.253.253.253");
+        assertEquals("191.253.253.253", pool.allocate());
+        assertEquals("193.0.0.1", pool.allocate());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsReservedStartingAddress() {
+        new IPv4AddressPool("127.0.0.1");
+    }
+
+    @Test
+    public void exhaustsAfterLastAddress() throws CloudException {
+        IPv4AddressPool pool = new IPv4AddressPool("253.253.253.253");
+
+        assertEquals("253.253.253.253", pool.allocate());
+        try {
+            pool.allocate();
+            fail("Allocated an address beyond the end of the address space");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        assertTrue(pool.release("253.253.253.253"));
+        assertEquals("253.253.253.253", pool.allocate());
+    }
+
+    @Test
+    public void bulkAllocationIsAllOrNothing() throws CloudException {
+        IPv4AddressPool pool = new IPv4AddressPool("253.253.253.252");
+
+        try {
+            pool.allocate(3);
+            fail("Allocated more addresses than remain in the address space");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        assertFalse(pool.isAllocated("253.253.253.252"));
+
+        String[] ips = pool.allocate(2);
+
+        assertEquals("253.253.253.252", ips[0]);
+        assertEquals("253.253.253.253", ips[1]);
+    }
+
+    @Test
+    public void reusesReleasedAddressesOldestFirst() throws CloudException {
+        IPv4AddressPool pool = new IPv4AddressPool();
+        String[] ips = pool.allocate(40);
+
+        // more releases than the free list's initial capacity, starting partway through it
+        assertTrue(pool.release(ips[5]));
+        assertEquals(ips[5], pool.allocate());
+        for( int i=39; i>=10; i-- ) {
+            assertTrue(pool.release(ips[i]));
+        }
+        assertFalse(pool.isAllocated(ips[39]));
+        for( int i=39; i>=10; i-- ) {
+            assertEquals(ips[i], pool.allocate());
+        }
+        assertEquals("26.0.0.41", pool.allocate());
+    }
+
+    @Test
+    public void releaseRejectsUnknownAddresses() throws CloudException {
+        IPv4AddressPool pool = new IPv4AddressPool();
+        String ip = pool.allocate();
+
+        assertFalse(pool.release("26.0.0.2"));
+        assertFalse(pool.release("127.0.0.1"));
+        assertFalse(pool.release("not an address"));
+        assertTrue(pool.release(ip));
+        assertFalse(pool.release(ip));
+    }
+}
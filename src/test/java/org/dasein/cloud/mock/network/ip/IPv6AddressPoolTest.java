@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2009-2012 enStratus Networks Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.mock.network.ip;
+
+import org.dasein.cloud.CloudException;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies how {@link IPv6AddressPool} assigns /64 prefixes to accounts and interface IDs within them.
+ * @version 2013.02
+ * @since 2013.02
+ */
+public class IPv6AddressPoolTest {
+    static private @Nonnull String toPrefix(@Nonnull String ip) {
+        String[] groups = ip.split(":");
+
+        return (groups[0] + ":" + groups[1] + ":" + groups[2] + ":" + groups[3]);
+    }
+
+    @Test
+    public void givesEveryAccountItsOwnPrefix() throws CloudException {
+        IPv6AddressPool pool = new IPv6AddressPool(0L);
+        HashSet<String> prefixes = new HashSet<String>();
+
+        for( int i=0; i<10000; i++ ) {
+            String ip = pool.allocate("account-" + i);
+
+            assertTrue(ip, ip.startsWith("2001:"));
+            assertTrue("Duplicate prefix for " + ip, prefixes.add(toPrefix(ip)));
+        }
+    }
+
+    @Test
+    public void allocatesConsecutiveInterfaceIdsWithinAnAccount() throws CloudException {
+        IPv6AddressPool pool = new IPv6AddressPool(0L);
+        String first = pool.allocate("account");
+        String[] more = pool.allocate("account", 2);
+        String prefix = toPrefix(first);
+
+        assertEquals(prefix + ":0:0:0:1", first);
+        assertEquals(prefix + ":0:0:0:2", more[0]);
+        assertEquals(prefix + ":0:0:0:3", more[1]);
+    }
+
+    @Test
+    public void prefixesAreRepeatableUnderTheSameSeed() throws CloudException {
+        IPv6AddressPool a = new IPv6AddressPool(42L);
+        IPv6AddressPool b = new IPv6AddressPool(0L);
+        IPv6AddressPool c = new IPv6AddressPool(7L);
+
+        b.setSeed(42L);
+        for( int i=0; i<100; i++ ) {
+            String ip = a.allocate("account-" + i);
+
+            assertEquals(ip, b.allocate("account-" + i));
+            assertFalse(ip.equals(c.allocate("account-" + i)));
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void seedCannotChangeOncePrefixesAreAssigned() throws CloudException {
+        IPv6AddressPool pool = new IPv6AddressPool(0L);
+
+        pool.allocate("account");
+        pool.setSeed(1L);
+    }
+
+    @Test
+    public void bulkAllocationIsAllOrNothing() throws CloudException {
+        IPv6AddressPool pool = new IPv6AddressPool(0L);
+        IPv6AddressPool fresh = new IPv6AddressPool(0L);
+
+        try {
+            pool.allocate("greedy", Integer.MAX_VALUE);
+            fail("Allocated more addresses than a /64 can supply");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        // the failed request must not have used up a prefix
+        assertEquals(fresh.allocate("other"), pool.allocate("other"));
+
+        String first = pool.allocate("other");
+
+        try {
+            pool.allocate("other", Integer.MAX_VALUE - 1);
+            fail("Allocated more addresses than remain in the /64");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        assertEquals(toPrefix(first) + ":0:0:0:3", pool.allocate("other"));
+    }
+
+    @Test
+    public void releasedAddressesAreNotReused() throws CloudException {
+        IPv6AddressPool pool = new IPv6AddressPool(0L);
+        String ip = pool.allocate("account");
+
+        assertTrue(pool.isAllocated(ip));
+        assertTrue(pool.release(ip));
+        assertFalse(pool.isAllocated(ip));
+        assertFalse(pool.release(ip));
+        assertFalse(ip.equals(pool.allocate("account")));
+    }
+
+    @Test
+    public void rejectsAddressesItDidNotHandOut() throws CloudException {
+        IPv6AddressPool pool = new IPv6AddressPool(0L);
+        String ip = pool.allocate("account");
+
+        assertFalse(pool.isAllocated(toPrefix(ip) + ":0:0:0:2"));
+        assertFalse(pool.isAllocated("2001::1"));
+        assertFalse(pool.isAllocated("26.0.0.1"));
+        assertFalse(pool.release("not an address"));
+    }
+}